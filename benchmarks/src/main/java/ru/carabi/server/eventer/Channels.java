@@ -0,0 +1,39 @@
+package ru.carabi.server.eventer;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Вспомогательные функции для каналов EmbeddedChannel, заменяющих сокеты.
+ */
+final class Channels {
+	private Channels() {
+	}
+	
+	/**
+	 * Создание канала с обработчиком, отбрасывающим входящие сообщения.
+	 */
+	static EmbeddedChannel discardingChannel() {
+		return new EmbeddedChannel(new DiscardingMessagesHandler());
+	}
+	
+	static MessagesHandler handler(EmbeddedChannel channel) {
+		return channel.pipeline().get(DiscardingMessagesHandler.class);
+	}
+	
+	/**
+	 * Освобождение всего, что было записано в канал
+	 * (включая события, ожидавшие в очереди подключения).
+	 * @return число записанных сообщений
+	 */
+	static int drainOutbound(EmbeddedChannel channel) {
+		channel.runPendingTasks();
+		int count = 0;
+		Object message;
+		while ((message = channel.readOutbound()) != null) {
+			ReferenceCountUtil.release(message);
+			count++;
+		}
+		return count;
+	}
+}
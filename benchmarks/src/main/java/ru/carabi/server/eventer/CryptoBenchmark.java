@@ -0,0 +1,79 @@
+package ru.carabi.server.eventer;
+
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+import javax.json.Json;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.carabi.libs.CarabiFunc;
+
+/**
+ * Пропускная способность {@link CryptoEngine}: расшифровка пакета fireEvent,
+ * подпись и проверка подписанного пакета (пакет принимается только один раз,
+ * поэтому каждый раз подписывается новый), расшифровка токена с кэшем и без него.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CryptoBenchmark {
+	@Param({"100", "4000"})
+	int messageLength;
+	
+	private final InetSocketAddress sender = new InetSocketAddress("127.0.0.1", 40000);
+	private String encryptedPackage;
+	private String eventPackage;
+	private long sequence = 0;
+	private String encryptedToken;
+	
+	@Setup
+	public void setup() throws GeneralSecurityException {
+		StringBuilder message = new StringBuilder();
+		while (message.length() < messageLength) {
+			message.append("событие ");
+		}
+		eventPackage = Json.createObjectBuilder()
+				.add("schema", "schema")
+				.add("login", "")
+				.add("eventcode", 1000)
+				.add("message", message.toString())
+				.build().toString();
+		CryptoEngine.setMacKey("benchmark-key");
+		encryptedPackage = CarabiFunc.encrypt(eventPackage);
+		encryptedToken = CarabiFunc.encrypt("load-schema-1");
+		CryptoEngine.decryptToken(encryptedToken);
+	}
+	
+	@Benchmark
+	public String openEncryptedPackage() throws GeneralSecurityException {
+		return CryptoEngine.openEventPackage(encryptedPackage, sender);
+	}
+	
+	@Benchmark
+	public String signAndOpenPackage() throws GeneralSecurityException {
+		String unique = eventPackage.substring(0, eventPackage.length() - 1) + ",\"n\":" + (++sequence) + "}";
+		return CryptoEngine.openEventPackage(CryptoEngine.signEventPackage(unique), sender);
+	}
+	
+	@Benchmark
+	public String decryptToken() throws GeneralSecurityException {
+		return CarabiFunc.decrypt(encryptedToken);
+	}
+	
+	@Benchmark
+	public String decryptTokenCached() throws GeneralSecurityException {
+		return CryptoEngine.decryptToken(encryptedToken);
+	}
+}
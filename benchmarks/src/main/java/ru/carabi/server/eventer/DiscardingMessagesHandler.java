@@ -0,0 +1,16 @@
+package ru.carabi.server.eventer;
+
+/**
+ * Обработчик, который только считает прочитанные сообщения, не передавая их
+ * на обработку, &mdash; чтобы измерять разбор кадров без создания потоков.
+ */
+class DiscardingMessagesHandler extends MessagesHandler {
+	CarabiMessage lastMessage;
+	long messages;
+	
+	@Override
+	void dispatch(CarabiMessage carabiMessage) {
+		lastMessage = carabiMessage;
+		messages++;
+	}
+}
@@ -0,0 +1,60 @@
+package ru.carabi.server.eventer;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.carabi.libs.CarabiEventType;
+
+/**
+ * Кодирование и запись исходящих сообщений в {@link CarabiMessage#sendMessage}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodeBenchmark {
+	@Param({"16", "1024", "10000"})
+	int payloadSize;
+	
+	@Param({"latin", "cyrillic"})
+	String alphabet;
+	
+	private EmbeddedChannel channel;
+	private ChannelHandlerContext ctx;
+	private String text;
+	
+	@Setup
+	public void setup() {
+		channel = Channels.discardingChannel();
+		ctx = Channels.handler(channel).getChannel();
+		char[] chars = new char[payloadSize];
+		Arrays.fill(chars, "latin".equals(alphabet) ? 'a' : 'я');
+		text = new String(chars);
+	}
+	
+	@TearDown
+	public void tearDown() {
+		channel.finish();
+	}
+	
+	@Benchmark
+	public int sendMessage() {
+		CarabiMessage.sendMessage(ctx, CarabiEventType.reserved, text);
+		return Channels.drainOutbound(channel);
+	}
+}
@@ -0,0 +1,67 @@
+package ru.carabi.server.eventer;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Маршрутизация событий в {@link ClientsHolder#fireEvent(String, String, int, String)}.
+ * Сессии распределены по SCHEMAS схемам; событие адресуется одному
+ * пользователю, одной схеме или всем.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FireEventBenchmark {
+	private static final int SCHEMAS = 10;
+	private static final int EVENT_CODE = 1000;
+	
+	@Param({"1000", "10000", "100000"})
+	int sessions;
+	
+	@Param({"user", "schema", "everybody"})
+	String target;
+	
+	private EmbeddedChannel channel;
+	private String schema;
+	private String login;
+	
+	@Setup
+	public void setup() {
+		channel = Channels.discardingChannel();
+		MessagesHandler handler = Channels.handler(channel);
+		for (int i = 0; i < sessions; i++) {
+			ClientsHolder.putSession("token" + i, "soap" + i, handler, "schema" + (i % SCHEMAS), "user" + i, i);
+		}
+		schema = "user".equals(target) || "schema".equals(target) ? "schema1" : "";
+		login = "user".equals(target) ? "user1" : "";
+	}
+	
+	@TearDown
+	public void tearDown() {
+		for (int i = 0; i < sessions; i++) {
+			ClientsHolder.delClient("token" + i);
+		}
+		channel.finish();
+	}
+	
+	@Benchmark
+	public int fireEvent() {
+		ClientsHolder.fireEvent(schema, login, EVENT_CODE, "{\"counter\":1}");
+		return Channels.drainOutbound(channel);
+	}
+}
@@ -0,0 +1,82 @@
+package ru.carabi.server.eventer;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.carabi.libs.CarabiEventType;
+
+/**
+ * Разбор входящих кадров в {@link MessagesHandler#channelRead}.
+ * Кадр подаётся целиком, двумя частями (граница посреди текста) или
+ * частями по 64 байта, как при медленном клиенте.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameDecodeBenchmark {
+	@Param({"16", "1024", "10000"})
+	int payloadSize;
+	
+	@Param({"whole", "split", "chunks64"})
+	String fragmentation;
+	
+	private EmbeddedChannel channel;
+	private DiscardingMessagesHandler handler;
+	private byte[][] parts;
+	
+	@Setup
+	public void setup() {
+		channel = Channels.discardingChannel();
+		handler = (DiscardingMessagesHandler) Channels.handler(channel);
+		byte[] frame = new byte[payloadSize + 3];
+		short code = CarabiEventType.synch.getCode();
+		frame[0] = (byte) (code >> 8);
+		frame[1] = (byte) code;
+		Arrays.fill(frame, 2, frame.length - 1, (byte) 'a');
+		frame[frame.length - 1] = 0;
+		switch (fragmentation) {
+			case "split":
+				parts = new byte[][]{Arrays.copyOfRange(frame, 0, frame.length / 2), Arrays.copyOfRange(frame, frame.length / 2, frame.length)};
+				break;
+			case "chunks64":
+				parts = new byte[(frame.length + 63) / 64][];
+				for (int i = 0; i < parts.length; i++) {
+					parts[i] = Arrays.copyOfRange(frame, i * 64, Math.min(frame.length, (i + 1) * 64));
+				}
+				break;
+			default:
+				parts = new byte[][]{frame};
+		}
+	}
+	
+	@TearDown
+	public void tearDown() {
+		channel.finish();
+	}
+	
+	@Benchmark
+	public CarabiMessage decode() {
+		for (byte[] part: parts) {
+			ByteBuf buffer = Unpooled.wrappedBuffer(part);
+			channel.writeInbound(buffer);
+		}
+		return handler.lastMessage;
+	}
+}
@@ -0,0 +1,66 @@
+package ru.carabi.server.eventer;
+
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Память, занимаемая простаивающим подключением: обработчик сообщений
+ * и сессия авторизованного клиента (без памяти самого канала Netty).
+ * Результат зависит от JVM и сборщика мусора, поэтому печатается, а не
+ * проверяется тестами.
+ * <p>
+ * Параметры: число подключений (50000) и число схем (10), например
+ * <code>java ru.carabi.server.eventer.IdleConnectionFootprint 50000 10</code>.
+ */
+public class IdleConnectionFootprint {
+	public static void main(String[] args) {
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+		int schemas = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		EmbeddedChannel[] channels = new EmbeddedChannel[connections];
+		for (int i = 0; i < connections; i++) {
+			channels[i] = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+		}
+		long bare = usedMemory();
+		for (int i = 0; i < connections; i++) {
+			MessagesHandler handler = new MessagesHandler();
+			channels[i].pipeline().addLast(handler);
+			//строки схемы и логина приходят от SOAP-сервера новыми объектами
+			ClientsHolder.putSession(token(i), "soap-" + token(i), handler, new String("schema" + (i % schemas)), "user" + i, i);
+		}
+		long sessions = usedMemory();
+		System.out.println("idle connection footprint: " + (sessions - bare) / connections + " bytes (" + connections + " connections)");
+		for (int i = 0; i < connections; i++) {
+			ClientsHolder.delClient(token(i));
+			//обработчик убираем до закрытия канала: закрытие сообщает SOAP-серверу об отключении
+			channels[i].pipeline().remove(MessagesHandler.class);
+			channels[i].finishAndReleaseAll();
+		}
+		System.exit(0);
+	}
+
+	private static String token(int i) {
+		return "eventer-token-" + i;
+	}
+
+	/**
+	 * Занятая куча и прямая память после сборки мусора.
+	 */
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++) {
+			System.gc();
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		long used = runtime.totalMemory() - runtime.freeMemory();
+		for (BufferPoolMXBean pool: ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+			used += pool.getMemoryUsed();
+		}
+		return used;
+	}
+}
@@ -0,0 +1,76 @@
+package ru.carabi.server.eventer;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.carabi.libs.CarabiEventType;
+
+/**
+ * Разбор JSON во входящих сообщениях: списки типов событий
+ * ({@link CarabiMessage#parseMessageTypes}) и запрос пользователей онлайн
+ * ({@link UserOnlineQuery}).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonParsingBenchmark {
+	@Param({"1", "10", "1000"})
+	int items;
+	
+	private EmbeddedChannel channel;
+	private MessagesHandler handler;
+	private CarabiMessage typesMessage;
+	private String typesJson;
+	private UserOnlineQuery userOnlineQuery;
+	
+	@Setup
+	public void setup() {
+		channel = Channels.discardingChannel();
+		handler = Channels.handler(channel);
+		CarabiEventType[] types = CarabiEventType.values();
+		StringBuilder typesArray = new StringBuilder("[");
+		StringBuilder usersArray = new StringBuilder("[");
+		for (int i = 0; i < items; i++) {
+			if (i > 0) {
+				typesArray.append(',');
+				usersArray.append(',');
+			}
+			typesArray.append(types[i % types.length].getCode());
+			usersArray.append("\"user").append(i).append('"');
+		}
+		typesJson = typesArray.append(']').toString();
+		typesMessage = new CarabiMessage(typesJson, CarabiEventType.autosynch, handler);
+		userOnlineQuery = new UserOnlineQuery(usersArray.append(']').toString(), CarabiEventType.userOnlineQuery, handler);
+	}
+	
+	@TearDown
+	public void tearDown() {
+		channel.finish();
+	}
+	
+	@Benchmark
+	public Collection<CarabiEventType> parseMessageTypes() {
+		return typesMessage.parseMessageTypes(typesJson);
+	}
+	
+	@Benchmark
+	public int userOnlineQuery() {
+		userOnlineQuery.handle(null);
+		return Channels.drainOutbound(channel);
+	}
+}
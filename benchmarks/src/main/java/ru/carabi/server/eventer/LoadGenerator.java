@@ -0,0 +1,275 @@
+package ru.carabi.server.eventer;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.json.Json;
+import ru.carabi.libs.CarabiEventType;
+import ru.carabi.libs.CarabiFunc;
+
+/**
+ * Нагрузочный клиент Eventer-а.
+ * Открывает много подключений, авторизует их (токены load-&lt;схема&gt;-&lt;номер&gt;,
+ * см. {@link SoapServerStub}), подписывает через Autosynch, после чего отдельным
+ * подключением рассылает события fireEvent по схемам и измеряет задержку доставки
+ * (от отправки fireEvent до получения события клиентом).
+ * <p>
+ * Параметры задаются аргументами имя=значение:
+ * host (127.0.0.1), port (LISTEN_PORT), connections (1000), connectRate
+ * (подключений в секунду, 2000), schemas (10), eventRate (событий в секунду, 10),
+ * eventCode (1000), autosynch (JSON-массив типов, []), duration (секунд, 60),
+ * localAddresses (через запятую &mdash; чтобы открыть больше подключений,
+ * чем позволяет диапазон портов одного адреса), macKey (если задан, пакеты
+ * fireEvent подписываются этим ключом, а не шифруются, см. {@link CryptoEngine}).
+ */
+public class LoadGenerator {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final Properties parameters;
+	private final String host;
+	private final int port;
+	private final int connections;
+	private final int schemas;
+	private final int eventCode;
+	private final String autosynch;
+	private final String[] localAddresses;
+	private final boolean signed;
+
+	private final Histogram latency = new Histogram();
+	private final AtomicLong connected = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong authorized = new AtomicLong();
+	private final AtomicLong eventsFired = new AtomicLong();
+	private final AtomicLong eventsReceived = new AtomicLong();
+	private final AtomicLong pings = new AtomicLong();
+
+	private EventLoopGroup group;
+	private Bootstrap bootstrap;
+
+	public static void main(String[] args) throws Exception {
+		Properties parameters = new Properties();
+		for (String arg: args) {
+			int separator = arg.indexOf('=');
+			if (separator < 0) {
+				System.out.println("Usage: java ru.carabi.server.eventer.LoadGenerator [name=value ...]");
+				return;
+			}
+			parameters.setProperty(arg.substring(0, separator), arg.substring(separator + 1));
+		}
+		new LoadGenerator(parameters).run();
+	}
+
+	LoadGenerator(Properties parameters) {
+		this.parameters = parameters;
+		host = parameters.getProperty("host", "127.0.0.1");
+		port = getInt("port", Integer.parseInt(Main.settings.getString("LISTEN_PORT")));
+		connections = getInt("connections", 1000);
+		schemas = getInt("schemas", 10);
+		eventCode = getInt("eventCode", 1000);
+		autosynch = parameters.getProperty("autosynch", "[]");
+		String addresses = parameters.getProperty("localAddresses", "");
+		localAddresses = addresses.isEmpty() ? new String[0] : addresses.split(",");
+		signed = parameters.containsKey("macKey");
+		if (signed) {
+			CryptoEngine.setMacKey(parameters.getProperty("macKey"));
+		}
+	}
+
+	private int getInt(String name, int defaultValue) {
+		return Integer.parseInt(parameters.getProperty(name, String.valueOf(defaultValue)));
+	}
+
+	void run() throws Exception {
+		group = new NioEventLoopGroup();
+		bootstrap = new Bootstrap()
+				.group(group)
+				.channel(NioSocketChannel.class)
+				.option(ChannelOption.TCP_NODELAY, true)
+				.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 30000);
+		try {
+			long duration = TimeUnit.SECONDS.toNanos(getInt("duration", 60));
+			long connectInterval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, getInt("connectRate", 2000));
+			long start = System.nanoTime();
+			for (int i = 0; i < connections; i++) {
+				connect(i);
+				long next = start + connectInterval * (i + 1);
+				while (System.nanoTime() < next) {
+					Thread.sleep(0, 100000);
+				}
+			}
+			System.out.println("connections opened in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+			Channel firer = fireEvents();
+			long end = System.nanoTime() + duration;
+			while (System.nanoTime() < end) {
+				Thread.sleep(1000);
+				report();
+			}
+			firer.close();
+			printLatency();
+		} finally {
+			group.shutdownGracefully();
+		}
+	}
+
+	private void connect(final int number) {
+		final String soapToken = "load-" + (number % schemas) + "-" + number;
+		bootstrap.handler(new ChannelInitializer<SocketChannel>() {
+			@Override
+			protected void initChannel(SocketChannel ch) throws Exception {
+				ch.pipeline().addLast(new FrameDecoder(), new ClientHandler(soapToken));
+			}
+		});
+		ChannelFuture future;
+		if (localAddresses.length > 0) {
+			future = bootstrap.connect(new InetSocketAddress(host, port), new InetSocketAddress(localAddresses[number % localAddresses.length], 0));
+		} else {
+			future = bootstrap.connect(host, port);
+		}
+		future.addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture future) throws Exception {
+				if (future.isSuccess()) {
+					connected.incrementAndGet();
+				} else {
+					failed.incrementAndGet();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Подключение, рассылающее события по схемам по очереди с частотой eventRate.
+	 * Текст события &mdash; время отправки (System.nanoTime), по нему получатели
+	 * вычисляют задержку.
+	 */
+	private Channel fireEvents() throws Exception {
+		bootstrap.handler(new FrameDecoder());
+		final Channel channel = bootstrap.connect(host, port).sync().channel();
+		long interval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, getInt("eventRate", 10));
+		channel.eventLoop().scheduleAtFixedRate(new Runnable() {
+			private int schema = 0;
+			@Override
+			public void run() {
+				try {
+					String eventPackage = Json.createObjectBuilder()
+							.add("schema", "load" + schema)
+							.add("login", "")
+							.add("eventcode", eventCode)
+							.add("message", String.valueOf(System.nanoTime()))
+							.build().toString();
+					schema = (schema + 1) % schemas;
+					String text = signed ? CryptoEngine.signEventPackage(eventPackage) : CarabiFunc.encrypt(eventPackage);
+					channel.writeAndFlush(frame(CarabiEventType.fireEvent.getCode(), text, channel));
+					eventsFired.incrementAndGet();
+				} catch (Exception ex) {
+					ex.printStackTrace();
+				}
+			}
+		}, interval, interval, TimeUnit.NANOSECONDS);
+		return channel;
+	}
+
+	private void report() {
+		System.out.println("connected: " + connected.get() + ", failed: " + failed.get()
+				+ ", authorized: " + authorized.get() + ", fired: " + eventsFired.get()
+				+ ", received: " + eventsReceived.get() + ", pings: " + pings.get());
+	}
+
+	private void printLatency() {
+		System.out.println("delivery latency, us: count " + latency.getCount()
+				+ ", mean " + latency.getMean() / 1000
+				+ ", p50 " + latency.getPercentile(0.5) / 1000
+				+ ", p90 " + latency.getPercentile(0.9) / 1000
+				+ ", p99 " + latency.getPercentile(0.99) / 1000
+				+ ", p99.9 " + latency.getPercentile(0.999) / 1000
+				+ ", max " + latency.getMax() / 1000);
+	}
+
+	private static ByteBuf frame(short code, String text, Channel channel) {
+		byte[] data = text.getBytes(UTF8);
+		ByteBuf buffer = channel.alloc().buffer(data.length + 3);
+		buffer.writeShort(code);
+		buffer.writeBytes(data);
+		buffer.writeByte(0);
+		return buffer;
+	}
+
+	/**
+	 * Входящее сообщение Eventer-а.
+	 */
+	private static class Frame {
+		final short code;
+		final String text;
+
+		Frame(short code, String text) {
+			this.code = code;
+			this.text = text;
+		}
+	}
+
+	/**
+	 * Разбор сообщений: два байта типа, строка UTF-8, терминальный ноль.
+	 */
+	private static class FrameDecoder extends ByteToMessageDecoder {
+		@Override
+		protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+			while (in.readableBytes() >= 3) {
+				int end = in.indexOf(in.readerIndex() + 2, in.writerIndex(), (byte) 0);
+				if (end < 0) {
+					return;
+				}
+				short code = in.readShort();
+				String text = in.toString(in.readerIndex(), end - in.readerIndex(), UTF8);
+				in.readerIndex(end + 1);
+				out.add(new Frame(code, text));
+			}
+		}
+	}
+
+	/**
+	 * Клиент: авторизация, подписка, ответы на пинги, учёт задержки событий.
+	 */
+	private class ClientHandler extends SimpleChannelInboundHandler<Frame> {
+		private final String soapToken;
+
+		ClientHandler(String soapToken) {
+			this.soapToken = soapToken;
+		}
+
+		@Override
+		public void channelActive(ChannelHandlerContext ctx) throws Exception {
+			ctx.writeAndFlush(frame(CarabiEventType.auth.getCode(), CarabiFunc.encrypt(soapToken), ctx.channel()));
+		}
+
+		@Override
+		protected void channelRead0(ChannelHandlerContext ctx, Frame frame) throws Exception {
+			if (frame.code == eventCode) {
+				latency.record(System.nanoTime() - Long.parseLong(frame.text));
+				eventsReceived.incrementAndGet();
+			} else if (frame.code == CarabiEventType.auth.getCode()) {
+				authorized.incrementAndGet();
+				ctx.writeAndFlush(frame(CarabiEventType.autosynch.getCode(), autosynch, ctx.channel()));
+			} else if (frame.code == CarabiEventType.ping.getCode()) {
+				pings.incrementAndGet();
+				ctx.writeAndFlush(frame(CarabiEventType.pong.getCode(), "PONG ПОНГ", ctx.channel()));
+			}
+		}
+	}
+}
@@ -0,0 +1,264 @@
+package ru.carabi.server.eventer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.json.Json;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Заглушка SOAP-сервера Carabi для нагрузочных испытаний без Glassfish.
+ * Публикует GuestService, ChatService, QueryService, MessageService и EventerService
+ * по тем же адресам, что и настоящий сервер. Описания сервисов (?wsdl) строятся
+ * по копиям схем из src/wsdl: операцией считается каждый элемент X, для которого
+ * есть элемент XResponse.
+ * <p>
+ * На getUserInfo заглушка отвечает данными, вычисленными из токена: токены
+ * вида load-&lt;схема&gt;-&lt;номер&gt; (их выдаёт {@link LoadGenerator}) дают
+ * схему load&lt;схема&gt; и логин user&lt;номер&gt;. На остальные операции
+ * отправляется пустой ответ.
+ * <p>
+ * Запуск: SoapServerStub [порт [задержка_мс]] &mdash; задержка имитирует время
+ * ответа настоящего сервера. Eventer запускается с адресом
+ * http://127.0.0.1:порт/carabiserver/.
+ */
+public class SoapServerStub {
+	private static final Logger logger = Logger.getLogger(SoapServerStub.class.getName());
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	static final String NAMESPACE = "http://soap.server.carabi.ru/";
+	private static final String CONTEXT_ROOT = "/carabiserver/";
+	private static final String[] SERVICES = {"GuestService", "ChatService", "QueryService", "MessageService", "EventerService"};
+
+	private final int delayMillis;
+	private final ConcurrentHashMap<String, AtomicLong> calls = new ConcurrentHashMap<>();
+	private HttpServer server;
+
+	public SoapServerStub(int delayMillis) {
+		this.delayMillis = delayMillis;
+	}
+
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+		int delay = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+		final SoapServerStub stub = new SoapServerStub(delay);
+		stub.start(port);
+		System.out.println("SOAP stub: http://127.0.0.1:" + port + CONTEXT_ROOT);
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				System.out.println("SOAP calls: " + stub.calls);
+			}
+		}));
+	}
+
+	public void start(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(port), 1024);
+		for (String service: SERVICES) {
+			server.createContext(CONTEXT_ROOT + service, new ServiceHandler(service));
+		}
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+	}
+
+	/**
+	 * Число вызовов по операциям.
+	 */
+	public Map<String, AtomicLong> getCalls() {
+		return calls;
+	}
+
+	/**
+	 * Данные пользователя по SOAP-токену.
+	 */
+	static String userInfo(String soapToken) {
+		String schema = "load";
+		String login = soapToken;
+		int userId = 0;
+		String[] parts = soapToken == null ? new String[0] : soapToken.split("-");
+		if (parts.length == 3 && "load".equals(parts[0])) {
+			schema = "load" + parts[1];
+			login = "user" + parts[2];
+			userId = Integer.parseInt(parts[2]);
+		}
+		return Json.createObjectBuilder()
+				.add("schema", schema)
+				.add("login", login)
+				.add("carabiUserID", userId)
+				.build().toString();
+	}
+
+	private class ServiceHandler implements HttpHandler {
+		private final String service;
+		private final String schemaResource;
+		private String wsdl;
+
+		ServiceHandler(String service) {
+			this.service = service;
+			this.schemaResource = "/wsdl/" + service + ".xsd_1.xsd";
+		}
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				String query = exchange.getRequestURI().getQuery();
+				if ("GET".equals(exchange.getRequestMethod()) && "wsdl".equalsIgnoreCase(query)) {
+					respond(exchange, 200, "text/xml", getWsdl(exchange));
+				} else if ("GET".equals(exchange.getRequestMethod()) && "xsd=1".equals(query)) {
+					respond(exchange, 200, "text/xml", readResource(schemaResource));
+				} else if ("POST".equals(exchange.getRequestMethod())) {
+					respond(exchange, 200, "text/xml; charset=utf-8", invoke(exchange.getRequestBody()));
+				} else {
+					respond(exchange, 404, "text/plain", "not found");
+				}
+			} catch (Exception ex) {
+				logger.log(Level.SEVERE, null, ex);
+				respond(exchange, 500, "text/plain", String.valueOf(ex.getMessage()));
+			} finally {
+				exchange.close();
+			}
+		}
+
+		private String invoke(InputStream request) throws Exception {
+			Document envelope = newDocumentBuilder().parse(request);
+			Element operation = firstChildElement(firstChildElement(envelope.getDocumentElement(), "Body"), null);
+			String name = operation.getLocalName();
+			AtomicLong counter = calls.get(name);
+			if (counter == null) {
+				AtomicLong created = new AtomicLong();
+				counter = calls.putIfAbsent(name, created);
+				if (counter == null) {
+					counter = created;
+				}
+			}
+			counter.incrementAndGet();
+			if (delayMillis > 0) {
+				Thread.sleep(delayMillis);
+			}
+			String result = null;
+			if ("getUserInfo".equals(name)) {
+				Element token = firstChildElement(operation, null);
+				result = userInfo(token == null ? null : token.getTextContent());
+			}
+			StringBuilder response = new StringBuilder();
+			response.append("<?xml version='1.0' encoding='UTF-8'?>")
+					.append("<S:Envelope xmlns:S=\"http://schemas.xmlsoap.org/soap/envelope/\"><S:Body>")
+					.append("<ns2:").append(name).append("Response xmlns:ns2=\"").append(NAMESPACE).append("\">");
+			if (result != null) {
+				response.append("<return>").append(escape(result)).append("</return>");
+			}
+			response.append("</ns2:").append(name).append("Response></S:Body></S:Envelope>");
+			return response.toString();
+		}
+
+		private synchronized String getWsdl(HttpExchange exchange) throws Exception {
+			if (wsdl != null) {
+				return wsdl;
+			}
+			String address = "http://" + exchange.getRequestHeaders().getFirst("Host") + CONTEXT_ROOT + service;
+			Document schema = newDocumentBuilder().parse(SoapServerStub.class.getResourceAsStream(schemaResource));
+			NodeList elements = schema.getDocumentElement().getChildNodes();
+			Set<String> names = new HashSet<>();
+			for (int i = 0; i < elements.getLength(); i++) {
+				Node node = elements.item(i);
+				if (node instanceof Element && "element".equals(node.getLocalName())) {
+					names.add(((Element) node).getAttribute("name"));
+				}
+			}
+			List<String> operations = new ArrayList<>();
+			for (String name: names) {
+				if (names.contains(name + "Response")) {
+					operations.add(name);
+				}
+			}
+			StringBuilder messages = new StringBuilder();
+			StringBuilder portType = new StringBuilder();
+			StringBuilder binding = new StringBuilder();
+			for (String operation: operations) {
+				messages.append("<message name=\"").append(operation).append("\"><part name=\"parameters\" element=\"tns:").append(operation).append("\"/></message>")
+						.append("<message name=\"").append(operation).append("Response\"><part name=\"parameters\" element=\"tns:").append(operation).append("Response\"/></message>");
+				portType.append("<operation name=\"").append(operation).append("\"><input message=\"tns:").append(operation).append("\"/>")
+						.append("<output message=\"tns:").append(operation).append("Response\"/></operation>");
+				binding.append("<operation name=\"").append(operation).append("\"><soap:operation soapAction=\"\"/>")
+						.append("<input><soap:body use=\"literal\"/></input><output><soap:body use=\"literal\"/></output></operation>");
+			}
+			wsdl = "<?xml version='1.0' encoding='UTF-8'?>"
+					+ "<definitions xmlns=\"http://schemas.xmlsoap.org/wsdl/\" xmlns:soap=\"http://schemas.xmlsoap.org/wsdl/soap/\""
+					+ " xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\" xmlns:tns=\"" + NAMESPACE + "\""
+					+ " targetNamespace=\"" + NAMESPACE + "\" name=\"" + service + "\">"
+					+ "<types><xsd:schema><xsd:import namespace=\"" + NAMESPACE + "\" schemaLocation=\"" + address + "?xsd=1\"/></xsd:schema></types>"
+					+ messages
+					+ "<portType name=\"" + service + "\">" + portType + "</portType>"
+					+ "<binding name=\"" + service + "PortBinding\" type=\"tns:" + service + "\">"
+					+ "<soap:binding transport=\"http://schemas.xmlsoap.org/soap/http\" style=\"document\"/>" + binding + "</binding>"
+					+ "<service name=\"" + service + "\"><port name=\"" + service + "Port\" binding=\"tns:" + service + "PortBinding\">"
+					+ "<soap:address location=\"" + address + "\"/></port></service>"
+					+ "</definitions>";
+			return wsdl;
+		}
+	}
+
+	private static DocumentBuilder newDocumentBuilder() throws Exception {
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		return factory.newDocumentBuilder();
+	}
+
+	private static Element firstChildElement(Element parent, String localName) {
+		for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+			if (node instanceof Element && (localName == null || localName.equals(node.getLocalName()))) {
+				return (Element) node;
+			}
+		}
+		return null;
+	}
+
+	private static String escape(String text) {
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+	}
+
+	private static String readResource(String name) throws IOException {
+		try (InputStream input = SoapServerStub.class.getResourceAsStream(name)) {
+			ByteArrayOutputStream result = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = input.read(buffer)) > 0) {
+				result.write(buffer, 0, read);
+			}
+			return result.toString("UTF-8");
+		}
+	}
+
+	private static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+		byte[] data = body.getBytes(UTF8);
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, data.length);
+		try (OutputStream output = exchange.getResponseBody()) {
+			output.write(data);
+		}
+	}
+}
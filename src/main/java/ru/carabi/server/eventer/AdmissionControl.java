@@ -0,0 +1,136 @@
+package ru.carabi.server.eventer;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ограничение частоты подключений, авторизаций и пакетов fireEvent.
+ * Для каждого вида операций действуют общий лимит и лимит на один IP-адрес
+ * (параметры &lt;ВИД&gt;_RATE и &lt;ВИД&gt;_RATE_PER_IP в Settings.properties,
+ * операций в секунду, 0 &mdash; без ограничения). Проверка выполняется в потоке
+ * Netty до передачи сообщения на обработку, поэтому отклонённые запросы не
+ * доходят до расшифровки и SOAP-сервера. Статистика доступна через JMX.
+ */
+public class AdmissionControl implements AdmissionControlMBean {
+	/**
+	 * Виды ограничиваемых операций.
+	 */
+	enum Kind {
+		ACCEPT("ACCEPT_RATE"),
+		AUTH("AUTH_RATE"),
+		FIRE_EVENT("FIRE_EVENT_RATE");
+		
+		private final TokenBucket globalBucket;
+		private final int ratePerAddress;
+		private final ConcurrentHashMap<InetAddress, TokenBucket> addressBuckets = new ConcurrentHashMap<>();
+		private final AtomicInteger bucketsCreated = new AtomicInteger();
+		private final AtomicLong admitted = new AtomicLong();
+		private final AtomicLong rejected = new AtomicLong();
+		
+		Kind(String setting) {
+			int rate = Main.getIntSetting(setting, 0);
+			globalBucket = rate > 0 ? new TokenBucket(rate, rate) : null;
+			ratePerAddress = Main.getIntSetting(setting + "_PER_IP", 0);
+		}
+	}
+	
+	/**
+	 * После стольких созданных вёдер удаляем неиспользуемые.
+	 */
+	private static final int PURGE_PERIOD = 4096;
+	
+	/**
+	 * Разрешить или отклонить операцию.
+	 * @param kind вид операции
+	 * @param remoteAddress адрес клиента
+	 * @return true, если операция разрешена
+	 */
+	static boolean tryAcquire(Kind kind, SocketAddress remoteAddress) {
+		boolean allowed = true;
+		//сначала лимит адреса: запросы, отклонённые по нему, не должны расходовать общий лимит
+		if (kind.ratePerAddress > 0 && remoteAddress instanceof InetSocketAddress) {
+			allowed = getAddressBucket(kind, ((InetSocketAddress) remoteAddress).getAddress()).tryAcquire();
+		}
+		if (allowed && kind.globalBucket != null) {
+			allowed = kind.globalBucket.tryAcquire();
+		}
+		if (allowed) {
+			kind.admitted.incrementAndGet();
+		} else {
+			kind.rejected.incrementAndGet();
+		}
+		return allowed;
+	}
+	
+	private static TokenBucket getAddressBucket(Kind kind, InetAddress address) {
+		TokenBucket bucket = kind.addressBuckets.get(address);
+		if (bucket != null) {
+			return bucket;
+		}
+		bucket = new TokenBucket(kind.ratePerAddress, kind.ratePerAddress);
+		TokenBucket existing = kind.addressBuckets.putIfAbsent(address, bucket);
+		if (existing != null) {
+			return existing;
+		}
+		if (kind.bucketsCreated.incrementAndGet() % PURGE_PERIOD == 0) {
+			purge(kind);
+		}
+		return bucket;
+	}
+	
+	/**
+	 * Удаление вёдер адресов, от которых давно ничего не приходило.
+	 */
+	private static void purge(Kind kind) {
+		Iterator<TokenBucket> buckets = kind.addressBuckets.values().iterator();
+		while (buckets.hasNext()) {
+			if (buckets.next().isFull()) {
+				buckets.remove();
+			}
+		}
+	}
+	
+	@Override
+	public long getAcceptsAdmitted() {
+		return Kind.ACCEPT.admitted.get();
+	}
+	
+	@Override
+	public long getAcceptsRejected() {
+		return Kind.ACCEPT.rejected.get();
+	}
+	
+	@Override
+	public long getAuthAdmitted() {
+		return Kind.AUTH.admitted.get();
+	}
+	
+	@Override
+	public long getAuthRejected() {
+		return Kind.AUTH.rejected.get();
+	}
+	
+	@Override
+	public long getFireEventAdmitted() {
+		return Kind.FIRE_EVENT.admitted.get();
+	}
+	
+	@Override
+	public long getFireEventRejected() {
+		return Kind.FIRE_EVENT.rejected.get();
+	}
+	
+	@Override
+	public int getTrackedAddresses() {
+		int result = 0;
+		for (Kind kind: Kind.values()) {
+			result += kind.addressBuckets.size();
+		}
+		return result;
+	}
+}
@@ -0,0 +1,14 @@
+package ru.carabi.server.eventer;
+
+/**
+ * Статистика {@link AdmissionControl} для JMX.
+ */
+public interface AdmissionControlMBean {
+	long getAcceptsAdmitted();
+	long getAcceptsRejected();
+	long getAuthAdmitted();
+	long getAuthRejected();
+	long getFireEventAdmitted();
+	long getFireEventRejected();
+	int getTrackedAddresses();
+}
@@ -0,0 +1,156 @@
+package ru.carabi.server.eventer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+
+/**
+ * Асинхронная запись журнала.
+ * Записи помещаются в кольцевой буфер фиксированного размера (LOG_BUFFER) и
+ * выводятся фоновым потоком через исходные обработчики корневого логгера,
+ * поэтому потоки Netty и обработки сообщений не ждут вывода в файл.
+ * Если буфер заполнен, из него вытесняется самая старая запись (учитывается
+ * в статистике). Место вызова (класс и метод) определяется по стеку вызывающего
+ * потока, только если его выводит формат журнала: для SimpleFormatter &mdash;
+ * если формат (java.util.logging.SimpleFormatter.format) содержит %2$.
+ */
+class AsyncLogHandler extends Handler {
+	private static final Logger eventerLogger = Logger.getLogger("ru.carabi.server.eventer");
+	private static final AtomicLong dropped = new AtomicLong();
+	private static final String FORMAT_PROPERTY = "java.util.logging.SimpleFormatter.format";
+	
+	private final Handler[] delegates;
+	private final ArrayBlockingQueue<LogRecord> buffer;
+	private final Thread writer;
+	private final boolean inferCaller;
+	private volatile boolean closed = false;
+	
+	/**
+	 * Подключение к корневому логгеру вместо его обработчиков (если LOG_ASYNC не false).
+	 * Параметр LOG_LEVEL задаёт уровень журнала Eventer-а (например, FINE для отладки).
+	 */
+	static void install() {
+		Logger root = LogManager.getLogManager().getLogger("");
+		if (Main.settings.containsKey("LOG_LEVEL")) {
+			Level level = Level.parse(Main.getSetting("LOG_LEVEL", "INFO"));
+			eventerLogger.setLevel(level);
+			for (Handler handler: root.getHandlers()) {
+				if (handler.getLevel().intValue() > level.intValue()) {
+					handler.setLevel(level);
+				}
+			}
+		}
+		if (!Main.getBooleanSetting("LOG_ASYNC", true)) {
+			return;
+		}
+		Handler[] delegates = root.getHandlers();
+		final AsyncLogHandler asyncHandler = new AsyncLogHandler(delegates, Main.getIntSetting("LOG_BUFFER", 8192));
+		for (Handler handler: delegates) {
+			root.removeHandler(handler);
+		}
+		root.addHandler(asyncHandler);
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				asyncHandler.close();
+			}
+		}));
+	}
+	
+	/**
+	 * Нужно ли обработчикам место вызова. Формат SimpleFormatter по умолчанию
+	 * его содержит; о других форматтерах ничего не известно, поэтому считается,
+	 * что нужно.
+	 */
+	private static boolean needsCaller(Handler[] delegates) {
+		for (Handler handler: delegates) {
+			if (!(handler.getFormatter() instanceof SimpleFormatter)) {
+				return true;
+			}
+			String format = System.getProperty(FORMAT_PROPERTY);
+			if (format == null) {
+				format = LogManager.getLogManager().getProperty(FORMAT_PROPERTY);
+			}
+			if (format == null || format.contains("%2$")) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Число записей, вытесненных из-за переполнения буфера.
+	 */
+	static long getDropped() {
+		return dropped.get();
+	}
+	
+	AsyncLogHandler(Handler[] delegates, int capacity) {
+		this.delegates = delegates;
+		buffer = new ArrayBlockingQueue<>(capacity);
+		inferCaller = needsCaller(delegates);
+		setLevel(Level.ALL);
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!closed || !buffer.isEmpty()) {
+					try {
+						LogRecord record = buffer.poll(1, TimeUnit.SECONDS);
+						if (record == null) {
+							continue;
+						}
+						for (Handler handler: AsyncLogHandler.this.delegates) {
+							handler.publish(record);
+						}
+					} catch (InterruptedException ex) {
+						closed = true;
+					}
+				}
+			}
+		}, "eventer-log-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+	
+	@Override
+	public void publish(LogRecord record) {
+		if (closed || !isLoggable(record)) {
+			return;
+		}
+		if (inferCaller) {
+			//место вызова определяется по стеку, поэтому -- до передачи в другой поток
+			record.getSourceClassName();
+		}
+		while (!buffer.offer(record)) {
+			if (buffer.poll() != null) {
+				dropped.incrementAndGet();
+			}
+		}
+	}
+	
+	@Override
+	public void flush() {
+		for (Handler handler: delegates) {
+			handler.flush();
+		}
+	}
+	
+	@Override
+	public void close() {
+		closed = true;
+		try {
+			writer.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		for (Handler handler: delegates) {
+			handler.close();
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package ru.carabi.server.eventer;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Общий таймер автоматической рассылки событий (вместо потока на каждую сессию).
+ * Раз в AUTOSYNC_INTERVAL секунд подписанным сессиям отправляется последнее
+ * событие каждого типа из подписки ({@link ClientsHolder#setLastEvent}).
+ */
+final class AutosyncScheduler {
+	private static final Logger logger = Logger.getLogger(AutosyncScheduler.class.getName());
+	private static ScheduledExecutorService timer;
+	
+	private AutosyncScheduler() {
+	}
+	
+	static synchronized void start() {
+		if (timer != null) {
+			return;
+		}
+		int interval = Math.max(1, Main.getIntSetting("AUTOSYNC_INTERVAL", 5));
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "autosync");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					ClientsHolder.postLastEvents();
+				} catch (RuntimeException e) {
+					logger.log(Level.SEVERE, null, e);
+				}
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+	}
+}
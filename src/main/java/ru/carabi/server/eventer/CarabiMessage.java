@@ -1,13 +1,15 @@
 package ru.carabi.server.eventer;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.ChannelHandlerContext;
 import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.charset.Charset;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Properties;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -130,9 +132,20 @@ public class CarabiMessage {
 	 * @param messageText текст отправляемого сообщения
 	 */
 	protected static final void sendMessage(ChannelHandlerContext sessionContextChannel, CarabiEventType type, String messageText) {
-		short code = type.getCode();
-		sendMessage(sessionContextChannel, code, messageText);
+		sendMessage(sessionContextChannel, type.getCode(), messageText, OutboundLanes.Lane.BULK);
 	}
+	
+	/**
+	 * Отправка управляющего сообщения (ответы на Ping, Auth, Shutdown, пинги сервера)
+	 * вне очереди событий, см. {@link OutboundLanes}.
+	 * @param sessionContextChannel канал
+	 * @param type тип отправляемого сообщения
+	 * @param messageText текст отправляемого сообщения
+	 */
+	protected static final void sendControlMessage(ChannelHandlerContext sessionContextChannel, CarabiEventType type, String messageText) {
+		sendMessage(sessionContextChannel, type.getCode(), messageText, OutboundLanes.Lane.CONTROL);
+	}
+	
 	/**
 	 * Отправка сообщения.
 	 * Отправка кода и текста сообщения с терминальным нулём
@@ -141,13 +154,84 @@ public class CarabiMessage {
 	 * @param messageText текст отправляемого сообщения
 	 */
 	protected static final void sendMessage(ChannelHandlerContext sessionContextChannel, short code, String messageText) {
-		logger.fine(messageText);
+		sendMessage(sessionContextChannel, code, messageText, OutboundLanes.Lane.BULK);
+	}
+	
+	private static void sendMessage(ChannelHandlerContext sessionContextChannel, short code, String messageText, OutboundLanes.Lane lane) {
+		if (LogSampler.isLoggable(logger, Level.FINE)) {
+			logger.fine(messageText);
+		}
+		write(sessionContextChannel, encode(sessionContextChannel.alloc(), code, messageText), lane);
+	}
+	
+	/**
+	 * Кодирование сообщения для рассылки нескольким получателям
+	 * (см. {@link #sendEncoded}). Буфер освобождает вызывающий после рассылки.
+	 * @param code код типа сообщения
+	 * @param messageText текст сообщения
+	 * @return код и текст сообщения с терминальным нулём
+	 */
+	static ByteBuf encode(short code, String messageText) {
+		if (LogSampler.isLoggable(logger, Level.FINE)) {
+			logger.fine(messageText);
+		}
+		return encode(ByteBufAllocator.DEFAULT, code, messageText);
+	}
+	
+	private static ByteBuf encode(ByteBufAllocator alloc, short code, String messageText) {
 		byte[] dataToPost = messageText.getBytes(Charset.forName("UTF-8"));
-		ByteBuf buffer = sessionContextChannel.alloc().buffer(dataToPost.length + 3);
+		ByteBuf buffer = alloc.buffer(dataToPost.length + 3);
 		buffer.writeShort(code);
 		buffer.writeBytes(dataToPost);
 		buffer.writeByte(0);
-		sessionContextChannel.writeAndFlush(buffer);
+		return buffer;
+	}
+	
+	/**
+	 * Отправка сообщения, закодированного {@link #encode}, в очередь событий.
+	 * Каналу передаётся отдельная ссылка на общий буфер.
+	 * @param sessionContextChannel канал
+	 * @param encoded закодированное сообщение
+	 * @param key ключ замещения (null &mdash; нет)
+	 * @param expiresAt момент истечения срока жизни по System.nanoTime() (0 &mdash; бессрочно)
+	 */
+	static void sendEncoded(ChannelHandlerContext sessionContextChannel, ByteBuf encoded, String key, long expiresAt) {
+		ByteBuf buffer = encoded.duplicate().retain();
+		EventerStats.messageSent(buffer.readableBytes());
+		if (sessionContextChannel.handler() instanceof MessagesHandler) {
+			((MessagesHandler) sessionContextChannel.handler()).write(buffer, key, expiresAt);
+		} else {
+			sessionContextChannel.writeAndFlush(buffer);
+		}
+	}
+	
+	private static void write(ChannelHandlerContext sessionContextChannel, ByteBuf buffer, OutboundLanes.Lane lane) {
+		EventerStats.messageSent(buffer.readableBytes());
+		if (sessionContextChannel.handler() instanceof MessagesHandler) {
+			((MessagesHandler) sessionContextChannel.handler()).write(buffer, lane);
+		} else {
+			sessionContextChannel.writeAndFlush(buffer);
+		}
+	}
+	
+	/**
+	 * Является ли текст подписки объектом с кодами событий fireEvent
+	 * (<code>{"eventcodes":[...]}</code>), а не массивом типов автоматической рассылки.
+	 */
+	protected static boolean isEventCodes(String subscriptionJson) {
+		return subscriptionJson != null && subscriptionJson.trim().startsWith("{");
+	}
+	
+	protected Collection<Integer> parseEventCodes(String eventCodesJson) {
+		JsonReader eventsData = Json.createReader(new StringReader(eventCodesJson));
+		JsonArray eventCodes = eventsData.readObject().getJsonArray("eventcodes");
+		Collection<Integer> codes = new ArrayList<>();
+		if (eventCodes != null) {
+			for (int i=0, n=eventCodes.size(); i<n; i++) {
+				codes.add(eventCodes.getInt(i));
+			}
+		}
+		return codes;
 	}
 	
 	protected Collection<CarabiEventType> parseMessageTypes(String messageTypesJson) {
@@ -171,13 +255,13 @@ class Shutdown extends CarabiMessage {
 		String encryptedKey = getText();
 		if (encryptedKey == null || encryptedKey.equals("")) {
 			String key = CarabiFunc.getRandomString(128);
-			getClient().getUtilProperties().setProperty("shutdownKey", key);
-			sendMessage(getCtx(), CarabiEventType.shutdown, key);
+			getClient().setShutdownKey(key);
+			sendControlMessage(getCtx(), CarabiEventType.shutdown, key);
 		} else {
 			try {
-				String key = CarabiFunc.decrypt(encryptedKey);
-				if (key.equals(getClient().getUtilProperties().getProperty("shutdownKey"))) {
-					sendMessage(getCtx(), CarabiEventType.shutdown, "shutdownOK");
+				String key = CryptoEngine.decrypt(encryptedKey);
+				if (key.equals(getClient().getShutdownKey())) {
+					sendControlMessage(getCtx(), CarabiEventType.shutdown, "shutdownOK");
 					Main.shutdown();
 				}
 			} catch (GeneralSecurityException e) {
@@ -188,19 +272,33 @@ class Shutdown extends CarabiMessage {
 }
 
 class Ping extends CarabiMessage {
+	/**
+	 * Текст пинга, в ответ на который локальному клиенту отправляется статистика.
+	 */
+	static final String STATUS_QUERY = "STATUS";
+	private final boolean statusQuery;
 	public Ping(String src, CarabiEventType type, MessagesHandler client) {
 		super("PING ПИНГ", type, client);
+		statusQuery = STATUS_QUERY.equals(src);
 	}
 	@Override
 	public void handle(String token) {
 		String answer = "PONG ПОНГ";
-		sendMessage(getCtx(), CarabiEventType.pong, answer);
+		if (statusQuery && isLocalClient()) {
+			answer = new EventerStats().toJson();
+		}
+		sendControlMessage(getCtx(), CarabiEventType.pong, answer);
 		ClientsHolder.updateLastActive(token);
 	}
 	
 	@Override
 	public void post(String token){
-		sendMessage(getCtx(), CarabiEventType.ping, getText());
+		sendControlMessage(getCtx(), CarabiEventType.ping, getText());
+	}
+	
+	private boolean isLocalClient() {
+		SocketAddress address = getCtx().channel().remoteAddress();
+		return address instanceof InetSocketAddress && ((InetSocketAddress) address).getAddress().isLoopbackAddress();
 	}
 }
 
@@ -211,15 +309,14 @@ class Pong extends CarabiMessage {
 	@Override
 	public void handle(String token) {
 		ClientsHolder.updateLastActive(token);
-		final Properties utilProlerties = getClient().getUtilProperties();
 		//не отвечаем, если шла проверка сессии -- передаём на Glassfish
-		if ("true".equals(utilProlerties.getProperty("testingSession"))) {
-			utilProlerties.setProperty("testingSession", "false");
+		if (getClient().isTestingSession()) {
+			getClient().setTestingSession(false);
 			new Thread(new Runnable() {
 				@Override
 				public void run() {
 					try {
-						SoapGateway.guestServicePort.getUserInfo(getClient().getUtilProperties().getProperty("soapToken"));
+						SoapGateway.getUserInfo(getClient().getSoapToken());
 					} catch (CarabiException_Exception ex) {
 						Logger.getLogger(Pong.class.getName()).log(Level.SEVERE, null, ex);
 					}
@@ -240,8 +337,10 @@ class Auth extends CarabiMessage {
 		}
 		if (ClientsHolder.addClient(token, getClient())) {
 			String answer = "Клиент " + token + " авторизован!";
-			logger.fine(answer);
-			sendMessage(getCtx(), CarabiEventType.auth, answer);
+			if (LogSampler.isLoggable(logger, Level.FINE)) {
+				logger.fine(answer);
+			}
+			sendControlMessage(getCtx(), CarabiEventType.auth, answer);
 			getCtx().flush();
 			ClientsHolder.setSessionOnline(token, true);
 		} else {
@@ -273,6 +372,10 @@ class Autosynch extends CarabiMessage {
 	@Override
 	public void handle(String token) {
 		if (ClientsHolder.clientlIsRegistered(token)) {
+			if (isEventCodes(getText())) {
+				ClientsHolder.addEventCodes(token, parseEventCodes(getText()));
+				return;
+			}
 			Collection<CarabiEventType> types = parseMessageTypes(getText());
 			ClientsHolder.addEventTypes(token, types);
 		}
@@ -286,6 +389,10 @@ class DisableSync extends CarabiMessage {
 	@Override
 	public void handle(String token) {
 		if (ClientsHolder.clientlIsRegistered(token)) {
+			if (isEventCodes(getText())) {
+				ClientsHolder.removeEventCodes(token, parseEventCodes(getText()));
+				return;
+			}
 			Collection<CarabiEventType> types = parseMessageTypes(getText());
 			ClientsHolder.removeEventTypes(token, types);
 		}
@@ -311,7 +418,7 @@ class FireEvent extends CarabiMessage {
 	@Override
 	public void handle(String token) {
 		try {
-			ClientsHolder.fireEvent(getText());
+			ClientsHolder.fireEvent(getText(), getCtx().channel().remoteAddress());
 		} catch (Exception ex) {
 			Logger.getLogger(FireEvent.class.getName()).log(Level.SEVERE, null, ex);
 		}
@@ -1,5 +1,6 @@
 package ru.carabi.server.eventer;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -10,7 +11,8 @@ import java.util.logging.Logger;
 import ru.carabi.libs.CarabiEventType;
 
 /**
- * Клиент, отправляющий запросы для проверки состояния Eventer-а
+ * Клиент, отправляющий запросы для проверки состояния Eventer-а.
+ * С аргументом stats выводит статистику работы (JSON, см. {@link EventerStats}).
  * @author sasha
  */
 public class CheckStatus{
@@ -20,7 +22,12 @@ public class CheckStatus{
 		try (Socket socket = new Socket("127.0.0.1", port)) {
 			OutputStream outputStream = socket.getOutputStream();
 			InputStream inputStream = socket.getInputStream();
-			sendPing(outputStream);
+			if (args.length > 0 && "stats".equals(args[0])) {
+				sendPing(outputStream, Ping.STATUS_QUERY);
+				System.out.println(getPongResponse(inputStream));
+				return;
+			}
+			sendPing(outputStream, "PING ПИНГ");
 			assert "PONG ПОНГ".equals(getPongResponse(inputStream));
 			System.out.println("Eventer running");
 		} catch (Exception ex) {
@@ -29,27 +36,25 @@ public class CheckStatus{
 		}
 	}
 
-	private static void sendPing(OutputStream outputStream) throws IOException {
+	private static void sendPing(OutputStream outputStream, String text) throws IOException {
 		outputStream.write((byte)0);
 		outputStream.write((byte)CarabiEventType.ping.getCode());
-		outputStream.write("PING ПИНГ".getBytes("UTF-8"));
+		outputStream.write(text.getBytes("UTF-8"));
 		outputStream.write((byte)0);
 	}
 
 	private static String getPongResponse(InputStream inputStream) throws IOException {
 		int read;
-		byte[] buffer = new byte[10240];
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
 		read = inputStream.read();
 		assert read == 0;
 		read = inputStream.read();
 		assert read == CarabiEventType.pong.getCode();
-		int i = 0;
 		read = inputStream.read();
-		while (read != 0) {
-			buffer[i] = (byte) read;
+		while (read > 0) {
+			buffer.write(read);
 			read = inputStream.read();
-			i++;
 		}
-		return new String(buffer);
+		return buffer.toString("UTF-8");
 	}
 }
@@ -1,19 +1,28 @@
 package ru.carabi.server.eventer;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.util.internal.ConcurrentSet;
 import java.io.StringReader;
+import java.net.SocketAddress;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.json.Json;
+import javax.json.JsonArray;
 import javax.json.JsonObject;
+import javax.json.JsonStructure;
 import ru.carabi.libs.CarabiEventType;
 import ru.carabi.libs.CarabiFunc;
 import ru.carabi.stub.CarabiException_Exception;
@@ -52,9 +61,14 @@ public class ClientsHolder {
 	private static final ConcurrentHashMap<String, String> disconnectedRecently = new ConcurrentHashMap<>();
 	
 	/**
-	 * Сессии и пользователи
+	 * Сессии, подписанные на коды событий (по кодам), см. {@link #addEventCodes}
 	 */
-	private static final ConcurrentHashMap<String, String> loginPerToken = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<Integer, Set<SessionTimer>> sessionsByCode = new ConcurrentHashMap<>();
+	
+	/**
+	 * Сессии без фильтра по кодам событий (получают все события)
+	 */
+	private static final Set<SessionTimer> unfiltered = new ConcurrentSet<>();
 	
 	/**
 	 * Клиент подключился или отключился. Если клиент подключился и не был на
@@ -66,7 +80,9 @@ public class ClientsHolder {
 	 * @param isOnline подключился или отключился
 	 */
 	public static void setUserOnline(final String token, String login, boolean isOnline) {
-		logger.log(Level.FINE, "setUserOnline({0}, {1}, {2})", new Object[]{token, login, isOnline});
+		if (LogSampler.isLoggable(logger, Level.FINE)) {
+			logger.log(Level.FINE, "setUserOnline({0}, {1}, {2})", new Object[]{token, login, isOnline});
+		}
 		Date lastactive = new Date(0);
 		Date currentTime = new Date();
 		if (usersLastactive.containsKey(login)) {
@@ -98,7 +114,7 @@ public class ClientsHolder {
 			@Override
 			public void run() {
 				try {
-					SoapGateway.chatServicePort.fireUserState(token, online);
+					SoapGateway.fireUserState(token, online);
 				} catch (Exception ex) {
 					Logger.getLogger(Auth.class.getName()).log(Level.SEVERE, null, ex);
 				}
@@ -107,13 +123,17 @@ public class ClientsHolder {
 	}
 	
 	public static void setSessionOnline(String token, Boolean isOnline) {
-		setUserOnline(token, loginPerToken.get(token), isOnline);
+		SessionTimer session = token == null ? null : sessions.get(token);
+		setUserOnline(token, session == null ? null : session.login, isOnline);
 	}
 	
 	public static void updateLastActive(String token) {
-		String login = loginPerToken.get(token);
-		if (login != null) {
-			usersLastactive.put(login, new Date());
+		if (token == null) {
+			return;
+		}
+		SessionTimer session = sessions.get(token);
+		if (session != null) {
+			usersLastactive.put(session.login, new Date());
 		}
 	}
 	
@@ -156,12 +176,24 @@ public class ClientsHolder {
 	 * @return была ли сохранена сессия.
 	 */
 	public static boolean addClient(String eventerToken, MessagesHandler client) {
+		SessionSnapshot.Entry restored = SessionSnapshot.take(eventerToken);
+		if (restored != null) {
+			try {
+				restoreSession(restored, CryptoEngine.decryptToken(eventerToken), client);
+			} catch (GeneralSecurityException ex) {
+				logger.log(Level.INFO, null, ex);
+				return false;
+			}
+			SessionSnapshot.validate(restored, client);
+			return true;
+		}
 		try {
-			String soapToken = CarabiFunc.decrypt(eventerToken);
-			client.getUtilProperties().setProperty("soapToken", soapToken);
-			SessionTimer sessionTimer = new SessionTimer(eventerToken, soapToken, client);
-			sessions.put(eventerToken, sessionTimer);
-			new Thread(sessionTimer).start();
+			String soapToken = CryptoEngine.decryptToken(eventerToken);
+			client.setSoapToken(soapToken);
+			String userInfoJson = SoapGateway.getUserInfo(soapToken);
+			logger.fine(userInfoJson);
+			JsonObject userInfo = Json.createReader(new StringReader(userInfoJson)).readObject();
+			putSession(eventerToken, soapToken, client, userInfo.getString("schema", ""), userInfo.getString("login"), userInfo.getInt("carabiUserID"));
 			return true;
 		} catch (GeneralSecurityException | CarabiException_Exception ex) {
 			logger.log(Level.INFO, null, ex);
@@ -169,8 +201,79 @@ public class ClientsHolder {
 		}
 	}
 	
+	/**
+	 * Сохранить сессию с уже известными данными пользователя (без обращения к SOAP-серверу).
+	 * Строки схемы и логина интернируются: они повторяются у многих сессий.
+	 * @param eventerToken токен Eventer-а
+	 * @param soapToken расшифрованный токен SOAP-сервера
+	 * @param client подключение клиента
+	 * @param schema схема пользователя
+	 * @param login логин пользователя
+	 * @param userId ID пользователя
+	 */
+	static void putSession(String eventerToken, String soapToken, MessagesHandler client, String schema, String login, int userId) {
+		schema = schema.intern();
+		login = login.intern();
+		client.setSoapToken(soapToken);
+		SessionTimer sessionTimer = new SessionTimer(eventerToken, client, schema, login, userId);
+		client.setSchema(schema);
+		unfiltered.add(sessionTimer);
+		SessionTimer replaced = sessions.put(eventerToken, sessionTimer);
+		if (replaced != null) {
+			unindex(replaced);
+		}
+	}
+	
+	/**
+	 * Сохранить сессию из {@link SessionSnapshot} вместе с подписками
+	 * на типы и коды событий.
+	 * @param restored сессия из снимка
+	 * @param soapToken SOAP-токен, расшифрованный из токена Eventer-а
+	 * @param client подключение клиента
+	 */
+	static void restoreSession(SessionSnapshot.Entry restored, String soapToken, MessagesHandler client) {
+		putSession(restored.eventerToken, soapToken, client, restored.schema, restored.login, restored.userId);
+		sessions.get(restored.eventerToken).whatToSend.addAll(restored.whatToSend);
+		if (restored.eventCodes != null) {
+			addEventCodes(restored.eventerToken, restored.eventCodes);
+		}
+	}
+	
+	static int getSessionsCount() {
+		return sessions.size();
+	}
+	
+	/**
+	 * Данные текущих сессий для {@link SessionSnapshot}.
+	 */
+	static List<SessionSnapshot.Entry> getSessionEntries() {
+		List<SessionSnapshot.Entry> entries = new ArrayList<>(sessions.size());
+		for (SessionTimer session: sessions.values()) {
+			Set<CarabiEventType> whatToSend = session.whatToSend.toSet();
+			Set<Integer> eventCodes;
+			synchronized (session) {
+				eventCodes = session.eventCodes == null ? null : new HashSet<>(session.eventCodes);
+			}
+			entries.add(new SessionSnapshot.Entry(session.eventerToken, session.schema, session.login, session.userId, whatToSend, eventCodes));
+		}
+		return entries;
+	}
+	
+	/**
+	 * Удалить сессию, не прошедшую проверку, и закрыть подключение клиента.
+	 * @param eventerToken токен сессии
+	 * @param client подключение, для которого сессия была создана
+	 */
+	static void rejectClient(String eventerToken, MessagesHandler client) {
+		SessionTimer sessionTimer = sessions.get(eventerToken);
+		if (sessionTimer != null && sessionTimer.client == client && sessions.remove(eventerToken, sessionTimer)) {
+			unindex(sessionTimer);
+		}
+		client.getChannel().close();
+	}
+	
 	public static boolean clientlIsRegistered(String token) {
-		return sessions.containsKey(token);
+		return token != null && sessions.containsKey(token);
 	}
 	
 	public static void delClient(String token) {
@@ -181,7 +284,46 @@ public class ClientsHolder {
 		if (sessionTimer == null) {
 			return;
 		}
-		sessionTimer.active = false;
+		unindex(sessionTimer);
+	}
+	
+	/**
+	 * Исключить удалённую сессию из рассылки событий.
+	 */
+	private static void unindex(SessionTimer session) {
+		synchronized (session) {
+			session.active = false;
+			unfiltered.remove(session);
+			if (session.eventCodes != null) {
+				for (Integer code: session.eventCodes) {
+					Set<SessionTimer> subscribers = sessionsByCode.get(code);
+					if (subscribers != null) {
+						subscribers.remove(session);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Закрытие всех сессий при остановке сервера. Каждой сессии отправляется
+	 * сообщение shutdown <code>{"reconnectAfter": мс}</code> со случайной
+	 * задержкой переподключения в пределах reconnectWindow, чтобы клиенты
+	 * переподключались не одновременно; подключение закрывается после передачи
+	 * ожидающих событий.
+	 * @param reconnectWindow интервал задержек переподключения, мс
+	 * @return закрытие подключений
+	 */
+	static List<ChannelFuture> closeSessions(long reconnectWindow) {
+		Random random = new Random();
+		List<ChannelFuture> closing = new ArrayList<>(sessions.size());
+		for (SessionTimer session: sessions.values()) {
+			long reconnectAfter = reconnectWindow > 0 ? (long) (random.nextDouble() * reconnectWindow) : 0;
+			String hint = Json.createObjectBuilder().add("reconnectAfter", reconnectAfter).build().toString();
+			CarabiMessage.sendControlMessage(session.sessionContextChannel, CarabiEventType.shutdown, hint);
+			closing.add(session.client.closeWhenDrained());
+		}
+		return closing;
 	}
 	
 	/**
@@ -199,62 +341,67 @@ public class ClientsHolder {
 	}
 
 	/**
-	 * Сессия пользователя с таймером для отправки статистических событий.
-	 * По таймеру происходит опрос БД и отправка сообщений клиенту.
+	 * Сессия пользователя.
+	 * Автоматическая рассылка событий по подпискам (whatToSend) выполняется
+	 * общим таймером {@link AutosyncScheduler}, проверка связи (пинги) &mdash;
+	 * в {@link MessagesHandler#userEventTriggered}.
 	 */
-	private static class SessionTimer implements Runnable {
-		private static final int EVENT_INTERVAL = 5;//интервал таймера проверки событий в секундах
-		private static final int SESSION_INTERVAL = 30;//интервал обновления сессии
-		boolean active = true;
-		String schema;
-		String login;
-		int userId;
-		String soapToken;
-		String eventerToken;
-		MessagesHandler client;
-		ChannelHandlerContext sessionContextChannel;
-		Set<CarabiEventType> whatToSend = new ConcurrentSet<>();//типы событий, которые должны приходить клиенту автоматически
-		Map<CarabiEventType, String> oldEvents = new ConcurrentHashMap<>();//события по типам, приходившие клиенту ранее
+	private static class SessionTimer {
+		volatile boolean active = true;
+		final String schema;
+		final String login;
+		final int userId;
+		final String eventerToken;
+		final MessagesHandler client;//SOAP-токен хранится в обработчике
+		final ChannelHandlerContext sessionContextChannel;
+		final EventTypeSet whatToSend = new EventTypeSet();//типы событий, которые должны приходить клиенту автоматически
+		private volatile Map<CarabiEventType, String> oldEvents;//события по типам, приходившие клиенту ранее (создаются при первом событии)
+		Set<Integer> eventCodes = null;//коды событий fireEvent, которые принимает клиент (null -- все), защищены монитором сессии
 		
-		SessionTimer(String eventerToken, String soapToken, MessagesHandler client) throws CarabiException_Exception {
-			active = true;
+		SessionTimer(String eventerToken, MessagesHandler client, String schema, String login, int userId) {
 			this.eventerToken = eventerToken;
-			this.soapToken = soapToken;
 			this.client = client;
 			this.sessionContextChannel = client.getChannel();
-			String userInfoJson = SoapGateway.guestServicePort.getUserInfo(soapToken);
-			logger.fine(userInfoJson);
-			JsonObject userInfo = Json.createReader(new StringReader(userInfoJson)).readObject();
-			schema = userInfo.getString("schema", "");
-			login = userInfo.getString("login");
-			userId = userInfo.getInt("carabiUserID");
-			loginPerToken.put(eventerToken, login);
+			this.schema = schema;
+			this.login = login;
+			this.userId = userId;
 		}
 		
-		@Override
-		public synchronized void run() {
-			int sessionCounter = 0;//
-			while (active && !sessionContextChannel.isRemoved()) {
-				//Проверяем наличие требуемых (whatToSend) событий
-				for (CarabiEventType type: whatToSend) {
-					CarabiMessage event = CarabiMessage.writeCarabiMessage(oldEvents.get(type), type, false, client);
-					event.post(eventerToken);
-				}
-				//пауза EVENT_INTERVAL
-				try {
-					wait(EVENT_INTERVAL * 1000);
-				} catch (InterruptedException ex) {
-					active = false;
-					logger.log(Level.SEVERE, null, ex);
+		String getOldEvent(CarabiEventType type) {
+			Map<CarabiEventType, String> events = oldEvents;
+			return events == null ? null : events.get(type);
+		}
+		
+		void setOldEvent(CarabiEventType type, String event) {
+			Map<CarabiEventType, String> events = oldEvents;
+			if (events == null) {
+				synchronized (this) {
+					events = oldEvents;
+					if (events == null) {
+						events = new ConcurrentHashMap<>(4);
+						oldEvents = events;
+					}
 				}
-				sessionCounter += EVENT_INTERVAL;
-				if (sessionCounter >= SESSION_INTERVAL) {
-					//Каждые SESSION_INTERVAL ставим testingSession true для уведомления сервера с базой
-					client.getUtilProperties().setProperty("testingSession", "true");
-					sessionCounter = 0;
-					//обмениваемся пингами с клиентом
-					CarabiMessage event = CarabiMessage.writeCarabiMessage("TEST_SESSION_PING", CarabiEventType.ping, false, client);
-					event.post(eventerToken);
+			}
+			events.put(type, event);
+		}
+	}
+	
+	/**
+	 * Отправка последних событий подписанным сессиям (см. {@link AutosyncScheduler}).
+	 */
+	static void postLastEvents() {
+		for (SessionTimer session: sessions.values()) {
+			if (!session.active || session.sessionContextChannel.isRemoved()) {
+				continue;
+			}
+			if (session.whatToSend.isEmpty()) {
+				continue;
+			}
+			for (CarabiEventType type: session.whatToSend.toSet()) {
+				String event = session.getOldEvent(type);
+				if (event != null) {
+					CarabiMessage.writeCarabiMessage(event, type, false, session.client).post(session.eventerToken);
 				}
 			}
 		}
@@ -267,7 +414,7 @@ public class ClientsHolder {
 	 * @return 
 	 */
 	public static String getSoapToken(String eventerToken) {
-		return sessions.get(eventerToken).soapToken;
+		return sessions.get(eventerToken).client.getSoapToken();
 	}
 	
 	/**
@@ -291,28 +438,184 @@ public class ClientsHolder {
 	
 	static void clearEventTypes(String eventerToken) {
 		sessions.get(eventerToken).whatToSend.clear();
+		clearEventCodes(eventerToken);
+	}
+	
+	/**
+	 * Принимать события fireEvent с указанными кодами.
+	 * Сессия, не подписывавшаяся на коды, получает все события; после первой
+	 * подписки &mdash; только события с кодами, на которые подписана.
+	 * @param eventerToken токен пользователя
+	 * @param eventCodes коды событий
+	 */
+	static void addEventCodes(String eventerToken, Collection<Integer> eventCodes) {
+		SessionTimer session = sessions.get(eventerToken);
+		synchronized (session) {
+			if (!session.active) {
+				return;
+			}
+			boolean wasUnfiltered = session.eventCodes == null;
+			if (wasUnfiltered) {
+				session.eventCodes = new HashSet<>();
+				//сначала из общего списка, затем в индекс: событие не придёт дважды
+				unfiltered.remove(session);
+			}
+			for (Integer code: eventCodes) {
+				if (session.eventCodes.add(code)) {
+					getSubscribers(code).add(session);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Не принимать события fireEvent с указанными кодами.
+	 * @param eventerToken токен пользователя
+	 * @param eventCodes коды событий
+	 */
+	static void removeEventCodes(String eventerToken, Collection<Integer> eventCodes) {
+		SessionTimer session = sessions.get(eventerToken);
+		synchronized (session) {
+			if (!session.active || session.eventCodes == null) {
+				return;
+			}
+			for (Integer code: eventCodes) {
+				if (session.eventCodes.remove(code)) {
+					sessionsByCode.get(code).remove(session);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Снять фильтр по кодам событий: сессия снова получает все события.
+	 * @param eventerToken токен пользователя
+	 */
+	static void clearEventCodes(String eventerToken) {
+		SessionTimer session = sessions.get(eventerToken);
+		synchronized (session) {
+			if (!session.active || session.eventCodes == null) {
+				return;
+			}
+			for (Integer code: session.eventCodes) {
+				sessionsByCode.get(code).remove(session);
+			}
+			session.eventCodes = null;
+			unfiltered.add(session);
+		}
+	}
+	
+	private static Set<SessionTimer> getSubscribers(Integer code) {
+		Set<SessionTimer> subscribers = sessionsByCode.get(code);
+		if (subscribers == null) {
+			subscribers = new ConcurrentSet<>();
+			Set<SessionTimer> existing = sessionsByCode.putIfAbsent(code, subscribers);
+			if (existing != null) {
+				subscribers = existing;
+			}
+		}
+		return subscribers;
 	}
 	
 	public static void setLastEvent(String eventerToken, CarabiEventType eventType, String eventText) {
-		sessions.get(eventerToken).oldEvents.put(eventType, eventText);
+		sessions.get(eventerToken).setOldEvent(eventType, eventText);
 	}
 	
-	public static void fireEvent(String encryptedEventPackage) throws Exception {
-		String eventPackageJson = CarabiFunc.decrypt(encryptedEventPackage);
-		logger.log(Level.FINE, "fireEvent: {0}", eventPackageJson);
-		JsonObject eventPackage = Json.createReader(new StringReader(eventPackageJson)).readObject();
-		String schema = eventPackage.getString("schema");
-		String login = eventPackage.getString("login");
-		int eventCode = eventPackage.getInt("eventcode");
-		String message = eventPackage.getString("message");
-		for (SessionTimer session: sessions.values()) {
-			logger.log(Level.FINE, "messsage to {0}", session.login);
-			boolean messageToEverybody = (login == null || login.equals("")) && (schema == null || schema.equals(""));
+	/**
+	 * Рассылка событий из пакета (сообщение fireEvent или датаграмма,
+	 * см. {@link EventDatagramHandler}).
+	 * @param receivedPackage зашифрованный или подписанный (см. {@link CryptoEngine})
+	 * JSON-объект события или массив событий
+	 * @param sender адрес отправителя
+	 * @return число событий в пакете
+	 */
+	public static int fireEvent(String receivedPackage, SocketAddress sender) throws Exception {
+		String eventPackageJson = CryptoEngine.openEventPackage(receivedPackage, sender);
+		if (LogSampler.isLoggable(logger, Level.FINE)) {
+			logger.log(Level.FINE, "fireEvent: {0}", eventPackageJson);
+		}
+		JsonStructure eventPackage = Json.createReader(new StringReader(eventPackageJson)).read();
+		if (eventPackage instanceof JsonArray) {
+			JsonArray events = (JsonArray) eventPackage;
+			for (int i = 0, n = events.size(); i < n; i++) {
+				fireEvent(events.getJsonObject(i));
+			}
+			return events.size();
+		}
+		fireEvent((JsonObject) eventPackage);
+		return 1;
+	}
+	
+	private static void fireEvent(JsonObject event) {
+		fireEvent(event.getString("schema"), event.getString("login"), event.getInt("eventcode"), event.getString("message"),
+				event.getString("key", null), event.getInt("ttl", 0));
+	}
+	
+	/**
+	 * Рассылка события подключённым клиентам.
+	 * Получатели выбираются из сессий, подписанных на код события, и сессий
+	 * без фильтра по кодам; сообщение кодируется один раз и передаётся всем
+	 * получателям. Событие отбрасывается, если схема получателей превысила квоту
+	 * частоты или объёма рассылки (см. {@link SchemaQuotas}).
+	 * @param schema схема получателей (пустая &mdash; все схемы)
+	 * @param login логин получателя (пустой &mdash; все пользователи схемы)
+	 * @param eventCode код события
+	 * @param message текст события
+	 */
+	static void fireEvent(String schema, String login, int eventCode, String message) {
+		fireEvent(schema, login, eventCode, message, null, 0);
+	}
+	
+	/**
+	 * Рассылка события с ключом замещения и сроком жизни (см. {@link OutboundLanes}).
+	 * @param schema схема получателей (пустая &mdash; все схемы)
+	 * @param login логин получателя (пустой &mdash; все пользователи схемы)
+	 * @param eventCode код события
+	 * @param message текст события
+	 * @param key ключ: событие заменяет не отправленное клиенту событие с тем же ключом (null &mdash; нет)
+	 * @param ttl срок жизни в миллисекундах: не отправленное за это время событие отбрасывается (0 &mdash; бессрочно)
+	 */
+	static void fireEvent(String schema, String login, int eventCode, String message, String key, int ttl) {
+		long start = System.nanoTime();
+		if (!SchemaQuotas.hasEventQuota(schema)) {
+			return;
+		}
+		List<SessionTimer> recipients = new ArrayList<>();
+		Set<SessionTimer> subscribers = sessionsByCode.get(eventCode);
+		if (subscribers != null) {
+			selectRecipients(subscribers, schema, login, recipients);
+		}
+		selectRecipients(unfiltered, schema, login, recipients);
+		long expiresAt = ttl > 0 ? start + TimeUnit.MILLISECONDS.toNanos(ttl) : 0;
+		ByteBuf encoded = recipients.isEmpty() ? null : CarabiMessage.encode((short) eventCode, message);
+		try {
+			long outboundBytes = encoded == null ? 0 : (long) encoded.readableBytes() * recipients.size();
+			if (!SchemaQuotas.tryFireEvent(schema, outboundBytes)) {
+				return;
+			}
+			for (SessionTimer session: recipients) {
+				if (LogSampler.isLoggable(logger, Level.FINEST)) {
+					logger.log(Level.FINEST, "messsage to {0}", session.login);
+				}
+				CarabiMessage.sendEncoded(session.sessionContextChannel, encoded, key, expiresAt);
+			}
+		} finally {
+			if (encoded != null) {
+				encoded.release();
+			}
+		}
+		long fanoutTime = System.nanoTime() - start;
+		EventerStats.fanout(recipients.size(), fanoutTime);
+		Tracing.fanout(eventCode, schema, login, recipients.size(), fanoutTime);
+	}
+	
+	private static void selectRecipients(Set<SessionTimer> candidates, String schema, String login, List<SessionTimer> recipients) {
+		boolean messageToEverybody = (login == null || login.equals("")) && (schema == null || schema.equals(""));
+		for (SessionTimer session: candidates) {
 			boolean messageToSchema = (login == null || login.equals("")) && session.schema.equals(schema);
 			boolean messageToUser = session.login.equals(login);
 			if (messageToEverybody || messageToUser || messageToSchema) {
-				logger.fine("firing!");
-				CarabiMessage.sendMessage(session.sessionContextChannel, (short) eventCode, message);
+				recipients.add(session);
 			}
 		}
 	}
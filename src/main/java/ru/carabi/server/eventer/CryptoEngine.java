@@ -0,0 +1,259 @@
+package ru.carabi.server.eventer;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.bind.DatatypeConverter;
+import ru.carabi.libs.CarabiFunc;
+
+/**
+ * Расшифровка и проверка входящих данных.
+ * Все расшифровки Eventer-а выполняются здесь. Токены клиентов повторяются
+ * (переподключения, проверка восстановленных сессий), поэтому результаты их
+ * расшифровки хранятся в кэше на TOKEN_CACHE записей (0 &mdash; без кэша).
+ * <p>
+ * Пакеты fireEvent от доверенных источников могут передаваться не
+ * зашифрованными, а подписанными:
+ * <code>hmac:&lt;подпись&gt;:&lt;время&gt;:&lt;JSON&gt;</code>, где время &mdash;
+ * момент подписи в миллисекундах от 1970 года, подпись &mdash; HMAC-SHA256
+ * от <code>&lt;время&gt;:&lt;JSON&gt;</code> (UTF-8) по ключу FIRE_EVENT_MAC_KEY
+ * в Base64. Такие пакеты принимаются, только если задан ключ и отправитель
+ * находится в локальной сети. Локальной считается любая сеть loopback или
+ * site-local (10/8, 172.16/12, 192.168/16), а адрес отправителя датаграммы
+ * легко подделать, поэтому защитой служат ключ и защита от повтора: пакет,
+ * время которого отличается от текущего больше чем на SIGNED_PACKAGE_WINDOW
+ * секунд, отклоняется, как и пакет с уже принятой за это время подписью
+ * (одинаковые пакеты, подписанные в одну миллисекунду, принимаются один раз).
+ * Принятые подписи хранятся, пока не истечёт это время, но не больше
+ * SIGNED_REPLAY_CACHE штук; при переполнении забываются самые старые,
+ * и пакеты, подписанные не позже забытых, отклоняются.
+ * Экземпляры Mac создаются по одному на поток и используются повторно.
+ */
+final class CryptoEngine {
+	static final String SIGNED_PREFIX = "hmac:";
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int tokenCacheSize = Main.getIntSetting("TOKEN_CACHE", 10000);
+	private static final long signedWindow = TimeUnit.SECONDS.toMillis(Math.max(1, Main.getIntSetting("SIGNED_PACKAGE_WINDOW", 30)));
+	private static final int replayCacheSize = Math.max(1, Main.getIntSetting("SIGNED_REPLAY_CACHE", 100000));
+	private static volatile SecretKeySpec macKey = getMacKey();
+	private static final AtomicLong tokenCacheHits = new AtomicLong();
+	private static final AtomicLong tokenCacheMisses = new AtomicLong();
+
+	/**
+	 * Расшифрованные токены (по зашифрованным), в порядке использования.
+	 */
+	private static final Map<String, String> tokens = new LinkedHashMap<String, String>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > tokenCacheSize;
+		}
+	};
+
+	/**
+	 * Начала (8 байт) принятых подписей и время подписи, в порядке приёма.
+	 */
+	private static final LinkedHashMap<Long, Long> signatures = new LinkedHashMap<>();
+	private static long replayFloor = Long.MIN_VALUE;//пакеты, подписанные не позже, не принимаются (защищено signatures)
+
+	/**
+	 * Mac потока вместе с ключом, по которому он инициализирован.
+	 */
+	private static final class ThreadMac {
+		final Mac mac;
+		SecretKeySpec key;
+
+		ThreadMac() throws GeneralSecurityException {
+			mac = Mac.getInstance(MAC_ALGORITHM);
+		}
+	}
+
+	private static final ThreadLocal<ThreadMac> macs = new ThreadLocal<>();
+
+	private CryptoEngine() {
+	}
+
+	private static SecretKeySpec getMacKey() {
+		String key = Main.getSetting("FIRE_EVENT_MAC_KEY", "");
+		return key.isEmpty() ? null : new SecretKeySpec(key.getBytes(UTF8), MAC_ALGORITHM);
+	}
+
+	/**
+	 * Замена ключа подписи пакетов (для тестов и измерений); принятые
+	 * подписи при этом забываются.
+	 * @param key ключ (null или пустая строка &mdash; подписанные пакеты не принимаются)
+	 */
+	static void setMacKey(String key) {
+		macKey = key == null || key.isEmpty() ? null : new SecretKeySpec(key.getBytes(UTF8), MAC_ALGORITHM);
+		synchronized (signatures) {
+			signatures.clear();
+			replayFloor = Long.MIN_VALUE;
+		}
+	}
+
+	/**
+	 * Принимаются ли подписанные пакеты (задан ли ключ).
+	 */
+	static boolean isSigningEnabled() {
+		return macKey != null;
+	}
+
+	/**
+	 * Расшифровка данных.
+	 * @param encrypted зашифрованная строка
+	 * @return расшифрованная строка
+	 */
+	static String decrypt(String encrypted) throws GeneralSecurityException {
+		return CarabiFunc.decrypt(encrypted);
+	}
+
+	/**
+	 * Расшифровка токена клиента с использованием кэша.
+	 * @param eventerToken токен Eventer-а (зашифрованный SOAP-токен)
+	 * @return SOAP-токен
+	 */
+	static String decryptToken(String eventerToken) throws GeneralSecurityException {
+		if (tokenCacheSize <= 0) {
+			return CarabiFunc.decrypt(eventerToken);
+		}
+		String soapToken;
+		synchronized (tokens) {
+			soapToken = tokens.get(eventerToken);
+		}
+		if (soapToken != null) {
+			tokenCacheHits.incrementAndGet();
+			return soapToken;
+		}
+		tokenCacheMisses.incrementAndGet();
+		soapToken = CarabiFunc.decrypt(eventerToken);
+		synchronized (tokens) {
+			tokens.put(eventerToken, soapToken);
+		}
+		return soapToken;
+	}
+
+	/**
+	 * Получение JSON пакета fireEvent: проверка подписи или расшифровка.
+	 * @param eventPackage зашифрованный или подписанный пакет
+	 * @param sender адрес отправителя (null &mdash; неизвестен)
+	 * @return JSON пакета
+	 * @throws GeneralSecurityException если пакет не расшифровывается или подпись
+	 * неверна либо не может быть принята от этого отправителя
+	 */
+	static String openEventPackage(String eventPackage, SocketAddress sender) throws GeneralSecurityException {
+		if (!eventPackage.startsWith(SIGNED_PREFIX)) {
+			return CarabiFunc.decrypt(eventPackage);
+		}
+		SecretKeySpec key = macKey;
+		if (key == null) {
+			throw new GeneralSecurityException("signed packages are disabled");
+		}
+		if (!isTrusted(sender)) {
+			throw new GeneralSecurityException("signed package from untrusted address " + sender);
+		}
+		int separator = eventPackage.indexOf(':', SIGNED_PREFIX.length());
+		int timeSeparator = separator < 0 ? -1 : eventPackage.indexOf(':', separator + 1);
+		if (timeSeparator < 0) {
+			throw new GeneralSecurityException("malformed signed package");
+		}
+		byte[] signature;
+		long signedAt;
+		try {
+			signature = DatatypeConverter.parseBase64Binary(eventPackage.substring(SIGNED_PREFIX.length(), separator));
+			signedAt = Long.parseLong(eventPackage.substring(separator + 1, timeSeparator));
+		} catch (IllegalArgumentException e) {
+			throw new GeneralSecurityException("malformed signed package", e);
+		}
+		String signedPart = eventPackage.substring(separator + 1);
+		if (!MessageDigest.isEqual(signature, sign(key, signedPart.getBytes(UTF8)))) {
+			throw new GeneralSecurityException("wrong signature");
+		}
+		long now = System.currentTimeMillis();
+		if (Math.abs(now - signedAt) > signedWindow) {
+			throw new GeneralSecurityException("signed package is outdated");
+		}
+		rememberSignature(signature, signedAt, now);
+		return eventPackage.substring(timeSeparator + 1);
+	}
+
+	/**
+	 * Защита от повтора: подпись принимается один раз за время её действия.
+	 */
+	private static void rememberSignature(byte[] signature, long signedAt, long now) throws GeneralSecurityException {
+		long prefix = 0;
+		for (int i = 0; i < 8 && i < signature.length; i++) {
+			prefix = prefix << 8 | (signature[i] & 0xFF);
+		}
+		synchronized (signatures) {
+			Iterator<Long> signedTimes = signatures.values().iterator();
+			while (signedTimes.hasNext()) {
+				long signed = signedTimes.next();
+				if (signed >= now - signedWindow && signatures.size() < replayCacheSize) {
+					break;
+				}
+				//пакеты вне окна и так отклоняются, вытесненные -- запоминаем границей
+				if (signed >= now - signedWindow) {
+					replayFloor = Math.max(replayFloor, signed);
+				}
+				signedTimes.remove();
+			}
+			if (signedAt <= replayFloor || signatures.containsKey(prefix)) {
+				throw new GeneralSecurityException("signed package is replayed");
+			}
+			signatures.put(prefix, signedAt);
+		}
+	}
+
+	/**
+	 * Подпись пакета (для источников событий и тестов).
+	 * @param json JSON пакета
+	 * @return подписанный пакет
+	 */
+	static String signEventPackage(String json) throws GeneralSecurityException {
+		SecretKeySpec key = macKey;
+		if (key == null) {
+			throw new GeneralSecurityException("FIRE_EVENT_MAC_KEY is not set");
+		}
+		String signedPart = System.currentTimeMillis() + ":" + json;
+		return SIGNED_PREFIX + DatatypeConverter.printBase64Binary(sign(key, signedPart.getBytes(UTF8))) + ":" + signedPart;
+	}
+
+	private static byte[] sign(SecretKeySpec key, byte[] data) throws GeneralSecurityException {
+		ThreadMac threadMac = macs.get();
+		if (threadMac == null) {
+			threadMac = new ThreadMac();
+			macs.set(threadMac);
+		}
+		if (threadMac.key != key) {
+			threadMac.mac.init(key);
+			threadMac.key = key;
+		}
+		return threadMac.mac.doFinal(data);
+	}
+
+	private static boolean isTrusted(SocketAddress sender) {
+		if (!(sender instanceof InetSocketAddress)) {
+			return false;
+		}
+		InetAddress address = ((InetSocketAddress) sender).getAddress();
+		return address != null && (address.isLoopbackAddress() || address.isSiteLocalAddress());
+	}
+
+	static long getTokenCacheHits() {
+		return tokenCacheHits.get();
+	}
+
+	static long getTokenCacheMisses() {
+		return tokenCacheMisses.get();
+	}
+}
@@ -0,0 +1,67 @@
+package ru.carabi.server.eventer;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Приём событий от SOAP-сервера по UDP (порт UDP_PORT на адресе UDP_BIND,
+ * 0 &mdash; не принимать).
+ * Датаграмма содержит подписанный пакет ({@link CryptoEngine}, нужен ключ
+ * FIRE_EVENT_MAC_KEY) с JSON-объектом события или массивом событий.
+ * Зашифрованные пакеты, как в тексте сообщения fireEvent, по UDP не
+ * принимаются: в них нет ни подписи, ни времени, и перехваченную датаграмму
+ * можно было бы повторять бесконечно; подписанный пакет проверяется на
+ * подлинность и повтор. Остальные пакеты отбрасываются. Пакеты проходят
+ * ограничение FIRE_EVENT_RATE и обрабатываются пулом {@link SchemaDispatcher}
+ * без подключения, авторизации и отдельного потока. Доставка по UDP не
+ * гарантируется, размер пакета ограничен UDP_MAX_PACKET байтами.
+ */
+final class EventDatagramHandler extends SimpleChannelInboundHandler<DatagramPacket> {
+	private static final Logger logger = Logger.getLogger(EventDatagramHandler.class.getName());
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	@Override
+	protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) {
+		if (!AdmissionControl.tryAcquire(AdmissionControl.Kind.FIRE_EVENT, packet.sender())) {
+			EventerStats.datagramReceived(false);
+			return;
+		}
+		final String eventPackage = packet.content().toString(UTF8);
+		final InetSocketAddress sender = packet.sender();
+		if (!eventPackage.startsWith(CryptoEngine.SIGNED_PREFIX)) {
+			EventerStats.datagramReceived(false);
+			if (LogSampler.isLoggable(logger, Level.WARNING)) {
+				logger.log(Level.WARNING, "datagram from {0} is rejected: package is not signed", sender);
+			}
+			return;
+		}
+		boolean queued = SchemaDispatcher.execute(SchemaDispatcher.FIRE_EVENT_QUEUE, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					int events = ClientsHolder.fireEvent(eventPackage, sender);
+					EventerStats.datagramReceived(true);
+					EventerStats.datagramEvents(events);
+				} catch (Exception e) {
+					EventerStats.datagramReceived(false);
+					if (LogSampler.isLoggable(logger, Level.WARNING)) {
+						logger.log(Level.WARNING, "datagram from {0} is rejected: {1}", new Object[]{sender, e.toString()});
+					}
+				}
+			}
+		});
+		if (!queued) {
+			EventerStats.datagramReceived(false);
+		}
+	}
+
+	@Override
+	public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+		logger.log(Level.WARNING, null, cause);
+	}
+}
@@ -0,0 +1,119 @@
+package ru.carabi.server.eventer;
+
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import ru.carabi.libs.CarabiEventType;
+
+/**
+ * Потокобезопасное множество типов событий в виде битовой маски
+ * (по порядковым номерам CarabiEventType). Типы с номерами от 64 хранятся
+ * в отдельном множестве, создаваемом при первом таком типе.
+ */
+final class EventTypeSet {
+	private static final AtomicLongFieldUpdater<EventTypeSet> BITS = AtomicLongFieldUpdater.newUpdater(EventTypeSet.class, "bits");
+	private static final CarabiEventType[] types = CarabiEventType.values();
+	private volatile long bits;
+	private Set<CarabiEventType> overflow;//защищено монитором объекта
+
+	void add(CarabiEventType type) {
+		if (type.ordinal() >= Long.SIZE) {
+			synchronized (this) {
+				if (overflow == null) {
+					overflow = EnumSet.noneOf(CarabiEventType.class);
+				}
+				overflow.add(type);
+			}
+			return;
+		}
+		long mask = 1L << type.ordinal();
+		long current;
+		do {
+			current = bits;
+		} while ((current & mask) == 0 && !BITS.compareAndSet(this, current, current | mask));
+	}
+
+	void remove(CarabiEventType type) {
+		if (type.ordinal() >= Long.SIZE) {
+			synchronized (this) {
+				if (overflow != null) {
+					overflow.remove(type);
+				}
+			}
+			return;
+		}
+		long mask = 1L << type.ordinal();
+		long current;
+		do {
+			current = bits;
+		} while ((current & mask) != 0 && !BITS.compareAndSet(this, current, current & ~mask));
+	}
+
+	void addAll(Collection<CarabiEventType> eventTypes) {
+		for (CarabiEventType type: eventTypes) {
+			if (type != null) {
+				add(type);
+			}
+		}
+	}
+
+	void removeAll(Collection<CarabiEventType> eventTypes) {
+		for (CarabiEventType type: eventTypes) {
+			if (type != null) {
+				remove(type);
+			}
+		}
+	}
+
+	void clear() {
+		bits = 0;
+		synchronized (this) {
+			overflow = null;
+		}
+	}
+
+	boolean contains(CarabiEventType type) {
+		if (type.ordinal() >= Long.SIZE) {
+			synchronized (this) {
+				return overflow != null && overflow.contains(type);
+			}
+		}
+		return (bits & (1L << type.ordinal())) != 0;
+	}
+
+	/**
+	 * Пусто ли множество (без блокировки, если нет типов с номерами от 64).
+	 */
+	boolean isEmpty() {
+		if (bits != 0) {
+			return false;
+		}
+		if (types.length <= Long.SIZE) {
+			return true;
+		}
+		synchronized (this) {
+			return overflow == null || overflow.isEmpty();
+		}
+	}
+
+	/**
+	 * Копия содержимого.
+	 */
+	Set<CarabiEventType> toSet() {
+		Set<CarabiEventType> result = EnumSet.noneOf(CarabiEventType.class);
+		long current = bits;
+		while (current != 0) {
+			result.add(types[Long.numberOfTrailingZeros(current)]);
+			current &= current - 1;
+		}
+		if (types.length > Long.SIZE) {
+			synchronized (this) {
+				if (overflow != null) {
+					result.addAll(overflow);
+				}
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,287 @@
+package ru.carabi.server.eventer;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.json.Json;
+import javax.json.JsonObjectBuilder;
+import ru.carabi.libs.CarabiEventType;
+
+/**
+ * Счётчики и гистограммы конвейера сообщений.
+ * Методы записи вызываются на каждом сообщении и не создают объектов;
+ * результаты публикуются через JMX (ru.carabi.server.eventer:type=EventerStats)
+ * и возвращаются локальному клиенту в ответ на пинг с текстом STATUS
+ * (см. {@link CheckStatus}).
+ */
+public class EventerStats implements EventerStatsMXBean {
+	private static final CarabiEventType[] types = CarabiEventType.values();
+	private static final AtomicLongArray framesDecoded = new AtomicLongArray(types.length);
+	private static final Histogram[] handleLatency = new Histogram[types.length];
+	private static final Histogram fanoutSize = new Histogram();
+	private static final Histogram fanoutDuration = new Histogram();
+	private static final AtomicLong outboundMessages = new AtomicLong();
+	private static final AtomicLong outboundBytes = new AtomicLong();
+	private static final OutboundLanes.Lane[] lanes = OutboundLanes.Lane.values();
+	private static final Histogram[] laneQueueTime = new Histogram[lanes.length];
+	private static final AtomicLong bulkDropped = new AtomicLong();
+	private static final AtomicLong bulkCoalesced = new AtomicLong();
+	private static final AtomicLong bulkExpired = new AtomicLong();
+	private static final AtomicInteger pendingSoapCalls = new AtomicInteger();
+	private static final AtomicLong soapCalls = new AtomicLong();
+	private static final AtomicLong soapErrors = new AtomicLong();
+	private static final AtomicLong datagramsAccepted = new AtomicLong();
+	private static final AtomicLong datagramsRejected = new AtomicLong();
+	private static final AtomicLong datagramEvents = new AtomicLong();
+	private static final AtomicLong dispatchDropped = new AtomicLong();
+	
+	static {
+		for (int i = 0; i < handleLatency.length; i++) {
+			handleLatency[i] = new Histogram();
+		}
+		for (int i = 0; i < laneQueueTime.length; i++) {
+			laneQueueTime[i] = new Histogram();
+		}
+	}
+	
+	static void frameDecoded(CarabiEventType type) {
+		framesDecoded.incrementAndGet(type.ordinal());
+	}
+	
+	static void handled(CarabiEventType type, long nanos) {
+		handleLatency[type.ordinal()].record(nanos);
+	}
+	
+	static void fanout(int recipients, long nanos) {
+		fanoutSize.record(recipients);
+		fanoutDuration.record(nanos);
+	}
+	
+	static void messageSent(int bytes) {
+		outboundMessages.incrementAndGet();
+		outboundBytes.addAndGet(bytes);
+	}
+	
+	/**
+	 * Время от отправки сообщения до его записи в сокет.
+	 */
+	static void laneQueueTime(OutboundLanes.Lane lane, long nanos) {
+		laneQueueTime[lane.ordinal()].record(nanos);
+	}
+	
+	static void bulkDropped() {
+		bulkDropped.incrementAndGet();
+	}
+	
+	static void bulkCoalesced() {
+		bulkCoalesced.incrementAndGet();
+	}
+	
+	static void bulkExpired() {
+		bulkExpired.incrementAndGet();
+	}
+	
+	static void soapCallStarted() {
+		pendingSoapCalls.incrementAndGet();
+		soapCalls.incrementAndGet();
+	}
+	
+	static void soapCallFinished(boolean success) {
+		pendingSoapCalls.decrementAndGet();
+		if (!success) {
+			soapErrors.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Обработана датаграмма с событиями (см. {@link EventDatagramHandler}).
+	 * @param accepted false, если пакет отклонён по частоте или не расшифрован
+	 */
+	static void datagramReceived(boolean accepted) {
+		if (accepted) {
+			datagramsAccepted.incrementAndGet();
+		} else {
+			datagramsRejected.incrementAndGet();
+		}
+	}
+	
+	static void datagramEvents(int events) {
+		datagramEvents.addAndGet(events);
+	}
+	
+	/**
+	 * Входящее сообщение отброшено: очередь схемы в {@link SchemaDispatcher} переполнена.
+	 */
+	static void dispatchDropped() {
+		dispatchDropped.incrementAndGet();
+	}
+	
+	@Override
+	public Map<String, Long> getFramesDecoded() {
+		Map<String, Long> result = new LinkedHashMap<>();
+		for (CarabiEventType type: types) {
+			result.put(type.name(), framesDecoded.get(type.ordinal()));
+		}
+		return result;
+	}
+	
+	@Override
+	public Map<String, HistogramSnapshot> getHandleLatency() {
+		Map<String, HistogramSnapshot> result = new LinkedHashMap<>();
+		for (CarabiEventType type: types) {
+			result.put(type.name(), handleLatency[type.ordinal()].snapshot());
+		}
+		return result;
+	}
+	
+	@Override
+	public HistogramSnapshot getFanoutSize() {
+		return fanoutSize.snapshot();
+	}
+	
+	@Override
+	public HistogramSnapshot getFanoutDuration() {
+		return fanoutDuration.snapshot();
+	}
+	
+	@Override
+	public long getOutboundMessages() {
+		return outboundMessages.get();
+	}
+	
+	@Override
+	public long getOutboundBytes() {
+		return outboundBytes.get();
+	}
+	
+	@Override
+	public Map<String, HistogramSnapshot> getLaneQueueTime() {
+		Map<String, HistogramSnapshot> result = new LinkedHashMap<>();
+		for (OutboundLanes.Lane lane: lanes) {
+			result.put(lane.name(), laneQueueTime[lane.ordinal()].snapshot());
+		}
+		return result;
+	}
+	
+	@Override
+	public long getBulkDropped() {
+		return bulkDropped.get();
+	}
+	
+	@Override
+	public long getDispatchDropped() {
+		return dispatchDropped.get();
+	}
+	
+	@Override
+	public long getBulkCoalesced() {
+		return bulkCoalesced.get();
+	}
+	
+	@Override
+	public long getBulkExpired() {
+		return bulkExpired.get();
+	}
+	
+	@Override
+	public int getPendingSoapCalls() {
+		return pendingSoapCalls.get();
+	}
+	
+	@Override
+	public long getSoapCalls() {
+		return soapCalls.get();
+	}
+	
+	@Override
+	public long getSoapErrors() {
+		return soapErrors.get();
+	}
+	
+	@Override
+	public long getDatagramsAccepted() {
+		return datagramsAccepted.get();
+	}
+	
+	@Override
+	public long getDatagramsRejected() {
+		return datagramsRejected.get();
+	}
+	
+	@Override
+	public long getDatagramEvents() {
+		return datagramEvents.get();
+	}
+	
+	@Override
+	public long getTokenCacheHits() {
+		return CryptoEngine.getTokenCacheHits();
+	}
+	
+	@Override
+	public long getTokenCacheMisses() {
+		return CryptoEngine.getTokenCacheMisses();
+	}
+	
+	@Override
+	public int getSessions() {
+		return ClientsHolder.getSessionsCount();
+	}
+	
+	@Override
+	public int getThreads() {
+		return ManagementFactory.getThreadMXBean().getThreadCount();
+	}
+	
+	@Override
+	public long getLogRecordsDropped() {
+		return AsyncLogHandler.getDropped();
+	}
+	
+	/**
+	 * Вся статистика одним JSON-объектом (для запроса состояния по сети).
+	 */
+	String toJson() {
+		JsonObjectBuilder frames = Json.createObjectBuilder();
+		JsonObjectBuilder latency = Json.createObjectBuilder();
+		for (CarabiEventType type: types) {
+			long decoded = framesDecoded.get(type.ordinal());
+			if (decoded > 0) {
+				frames.add(type.name(), decoded);
+				latency.add(type.name(), handleLatency[type.ordinal()].snapshot().toJson());
+			}
+		}
+		JsonObjectBuilder queueTime = Json.createObjectBuilder();
+		for (OutboundLanes.Lane lane: lanes) {
+			queueTime.add(lane.name(), laneQueueTime[lane.ordinal()].snapshot().toJson());
+		}
+		return Json.createObjectBuilder()
+				.add("framesDecoded", frames)
+				.add("handleLatency", latency)
+				.add("fanoutSize", getFanoutSize().toJson())
+				.add("fanoutDuration", getFanoutDuration().toJson())
+				.add("outboundMessages", getOutboundMessages())
+				.add("outboundBytes", getOutboundBytes())
+				.add("laneQueueTime", queueTime)
+				.add("bulkDropped", getBulkDropped())
+				.add("bulkCoalesced", getBulkCoalesced())
+				.add("bulkExpired", getBulkExpired())
+				.add("pendingSoapCalls", getPendingSoapCalls())
+				.add("soapCalls", getSoapCalls())
+				.add("soapErrors", getSoapErrors())
+				.add("datagramsAccepted", getDatagramsAccepted())
+				.add("datagramsRejected", getDatagramsRejected())
+				.add("datagramEvents", getDatagramEvents())
+				.add("dispatchDropped", getDispatchDropped())
+				.add("tokenCacheHits", getTokenCacheHits())
+				.add("tokenCacheMisses", getTokenCacheMisses())
+				.add("sessions", getSessions())
+				.add("threads", getThreads())
+				.add("logRecordsDropped", getLogRecordsDropped())
+				.add("schemas", new SchemaQuotas().toJson())
+				.build().toString();
+	}
+}
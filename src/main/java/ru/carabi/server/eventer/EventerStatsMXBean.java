@@ -0,0 +1,42 @@
+package ru.carabi.server.eventer;
+
+import java.util.Map;
+
+/**
+ * Статистика конвейера сообщений для JMX.
+ * Задержки &mdash; в наносекундах.
+ */
+public interface EventerStatsMXBean {
+	Map<String, Long> getFramesDecoded();
+	Map<String, HistogramSnapshot> getHandleLatency();
+	HistogramSnapshot getFanoutSize();
+	HistogramSnapshot getFanoutDuration();
+	long getOutboundMessages();
+	long getOutboundBytes();
+	/** время от отправки до записи в сокет по приоритетам (CONTROL, BULK) */
+	Map<String, HistogramSnapshot> getLaneQueueTime();
+	/** события, отброшенные из-за переполнения очереди подключения */
+	long getBulkDropped();
+	/** события, заменённые в очереди подключения более новыми с тем же ключом */
+	long getBulkCoalesced();
+	/** события, отброшенные из очереди по истечении срока жизни */
+	long getBulkExpired();
+	int getPendingSoapCalls();
+	long getSoapCalls();
+	long getSoapErrors();
+	/** датаграммы с событиями, принятые по UDP */
+	long getDatagramsAccepted();
+	/** датаграммы, отклонённые по частоте или не расшифрованные */
+	long getDatagramsRejected();
+	/** события в принятых датаграммах */
+	long getDatagramEvents();
+	/** входящие сообщения, отброшенные из-за переполнения очереди схемы */
+	long getDispatchDropped();
+	/** токены клиентов, расшифровка которых взята из кэша */
+	long getTokenCacheHits();
+	long getTokenCacheMisses();
+	int getSessions();
+	int getThreads();
+	/** записи журнала, вытесненные из переполненного буфера */
+	long getLogRecordsDropped();
+}
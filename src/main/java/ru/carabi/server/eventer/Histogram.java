@@ -0,0 +1,74 @@
+package ru.carabi.server.eventer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Гистограмма неотрицательных значений (задержек в наносекундах, размеров рассылок)
+ * с интервалами по степеням двойки.
+ * Запись значения не создаёт объектов и не берёт блокировок, поэтому её можно
+ * вызывать в потоках Netty на каждом сообщении. Процентили вычисляются с точностью
+ * до интервала (не хуже чем в два раза).
+ */
+final class Histogram {
+	private static final int BUCKETS = 65;
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+	
+	void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long currentMax = max.get();
+		while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+			currentMax = max.get();
+		}
+	}
+	
+	long getCount() {
+		return count.get();
+	}
+	
+	long getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : sum.get() / n;
+	}
+	
+	long getMax() {
+		return max.get();
+	}
+	
+	/**
+	 * Верхняя граница интервала, в который попадает заданная доля значений.
+	 * @param quantile доля значений (от 0 до 1)
+	 */
+	long getPercentile(double quantile) {
+		long total = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = buckets.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long threshold = (long) Math.ceil(total * quantile);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= threshold) {
+				return Math.min(i == 64 ? Long.MAX_VALUE : (1L << i) - 1, getMax());
+			}
+		}
+		return getMax();
+	}
+	
+	HistogramSnapshot snapshot() {
+		return new HistogramSnapshot(getCount(), getMean(), getPercentile(0.5), getPercentile(0.99), getMax());
+	}
+}
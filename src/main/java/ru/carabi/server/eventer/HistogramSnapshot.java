@@ -0,0 +1,55 @@
+package ru.carabi.server.eventer;
+
+import java.beans.ConstructorProperties;
+import javax.json.Json;
+import javax.json.JsonObject;
+
+/**
+ * Снимок {@link Histogram} для JMX и запроса состояния.
+ */
+public class HistogramSnapshot {
+	private final long count;
+	private final long mean;
+	private final long p50;
+	private final long p99;
+	private final long max;
+	
+	@ConstructorProperties({"count", "mean", "p50", "p99", "max"})
+	public HistogramSnapshot(long count, long mean, long p50, long p99, long max) {
+		this.count = count;
+		this.mean = mean;
+		this.p50 = p50;
+		this.p99 = p99;
+		this.max = max;
+	}
+	
+	public long getCount() {
+		return count;
+	}
+	
+	public long getMean() {
+		return mean;
+	}
+	
+	public long getP50() {
+		return p50;
+	}
+	
+	public long getP99() {
+		return p99;
+	}
+	
+	public long getMax() {
+		return max;
+	}
+	
+	JsonObject toJson() {
+		return Json.createObjectBuilder()
+				.add("count", count)
+				.add("mean", mean)
+				.add("p50", p50)
+				.add("p99", p99)
+				.add("max", max)
+				.build();
+	}
+}
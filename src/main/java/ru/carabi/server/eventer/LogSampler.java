@@ -0,0 +1,59 @@
+package ru.carabi.server.eventer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Проверка перед отладочными сообщениями на частых путях (каждое сообщение,
+ * каждый получатель рассылки).
+ * Сообщение пишется, только если уровень включён для логгера, и при этом
+ * из категории (имени логгера) пропускается каждое N-е сообщение, где N задаётся
+ * параметром LOG_SAMPLE_RATE.&lt;имя логгера&gt; или общим LOG_SAMPLE_RATE
+ * (по умолчанию 1 &mdash; все сообщения). Так отладочный журнал можно держать
+ * включённым под нагрузкой. Проверка не создаёт объектов; вызывающий код
+ * должен строить текст и параметры сообщения только после неё.
+ */
+final class LogSampler {
+	private static final int DEFAULT_RATE = Math.max(1, Main.getIntSetting("LOG_SAMPLE_RATE", 1));
+	private static final ConcurrentHashMap<String, Category> categories = new ConcurrentHashMap<>();
+	
+	private LogSampler() {
+	}
+	
+	/**
+	 * Писать ли сообщение.
+	 * @param logger логгер (категория)
+	 * @param level уровень сообщения
+	 * @return true, если уровень включён и сообщение попало в выборку
+	 */
+	static boolean isLoggable(Logger logger, Level level) {
+		if (!logger.isLoggable(level)) {
+			return false;
+		}
+		String name = logger.getName();
+		Category category = categories.get(name);
+		if (category == null) {
+			Category created = new Category(Math.max(1, Main.getIntSetting("LOG_SAMPLE_RATE." + name, DEFAULT_RATE)));
+			category = categories.putIfAbsent(name, created);
+			if (category == null) {
+				category = created;
+			}
+		}
+		return category.sample();
+	}
+	
+	private static final class Category {
+		private final int rate;
+		private final AtomicLong counter = new AtomicLong();
+		
+		Category(int rate) {
+			this.rate = rate;
+		}
+		
+		boolean sample() {
+			return rate == 1 || counter.getAndIncrement() % rate == 0;
+		}
+	}
+}
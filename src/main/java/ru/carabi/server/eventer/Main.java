@@ -1,8 +1,17 @@
 package ru.carabi.server.eventer;
 
+import io.netty.channel.ChannelFuture;
+import java.lang.management.ManagementFactory;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.List;
 import java.util.ResourceBundle;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  * Главный класс Carabi Eventer.
@@ -13,6 +22,7 @@ public class Main {
 	public static final ResourceBundle settings = ResourceBundle.getBundle("eventer.Settings");
 	private static String useSoapServer;
 	public static void main(String[] args) {
+		AsyncLogHandler.install();
 		int port = Integer.parseInt(settings.getString("LISTEN_PORT"));
 		useSoapServer = settings.getString("SOAP_SERVER");
 		
@@ -32,6 +42,9 @@ public class Main {
 		}
 		try {
 			SoapGateway.init(useSoapServer);
+			SessionSnapshot.start();
+			AutosyncScheduler.start();
+			registerMBeans();
 			nettyListener = new NettyListener();
 			nettyListener.start(port);
 		} catch (Exception ex) {
@@ -40,6 +53,16 @@ public class Main {
 	}
 	
 	private static NettyListener nettyListener;
+	
+	/**
+	 * Публикация статистики в JMX.
+	 */
+	private static void registerMBeans() throws JMException {
+		MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+		mBeanServer.registerMBean(new AdmissionControl(), new ObjectName("ru.carabi.server.eventer:type=AdmissionControl"));
+		mBeanServer.registerMBean(new EventerStats(), new ObjectName("ru.carabi.server.eventer:type=EventerStats"));
+		mBeanServer.registerMBean(new SchemaQuotas(), new ObjectName("ru.carabi.server.eventer:type=SchemaQuotas"));
+	}
 
 	private static void printHelp() {
 		System.out.println("Usage: java ru.carabi.server.eventer.Main [http://server/soap_service/ [listen_port]]\nDefault are:\n" + settings.getString("SOAP_SERVER") + "\n" + settings.getString("LISTEN_PORT"));
@@ -54,7 +77,65 @@ public class Main {
 		}
 	}
 	
+	/**
+	 * Строковый параметр из Settings.properties.
+	 * @param key имя параметра
+	 * @param defaultValue значение, если параметр не задан
+	 * @return значение параметра
+	 */
+	static String getSetting(String key, String defaultValue) {
+		if (!settings.containsKey(key)) {
+			return defaultValue;
+		}
+		return settings.getString(key).trim();
+	}
+	
+	/**
+	 * Целочисленный параметр из Settings.properties.
+	 * @param key имя параметра
+	 * @param defaultValue значение, если параметр не задан
+	 * @return значение параметра
+	 */
+	static int getIntSetting(String key, int defaultValue) {
+		if (!settings.containsKey(key)) {
+			return defaultValue;
+		}
+		return Integer.parseInt(settings.getString(key).trim());
+	}
+	
+	/**
+	 * Логический параметр из Settings.properties.
+	 * @param key имя параметра
+	 * @param defaultValue значение, если параметр не задан
+	 * @return значение параметра
+	 */
+	static boolean getBooleanSetting(String key, boolean defaultValue) {
+		if (!settings.containsKey(key)) {
+			return defaultValue;
+		}
+		return Boolean.parseBoolean(settings.getString(key).trim());
+	}
+	
+	/**
+	 * Остановка сервера. Приём подключений прекращается, снимок сессий
+	 * записывается, клиентам рассылается время переподключения (в пределах
+	 * RECONNECT_WINDOW секунд), подключения закрываются после передачи
+	 * ожидающих событий, но не позднее DRAIN_TIMEOUT секунд.
+	 */
 	public static void shutdown() {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(getIntSetting("DRAIN_TIMEOUT", 10));
+		nettyListener.stopAccepting();
+		SessionSnapshot.save();
+		List<ChannelFuture> closing = ClientsHolder.closeSessions(TimeUnit.SECONDS.toMillis(getIntSetting("RECONNECT_WINDOW", 30)));
+		int forced = 0;
+		for (ChannelFuture future: closing) {
+			long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (left <= 0 || !future.awaitUninterruptibly(left)) {
+				future.channel().close();
+				forced++;
+			}
+		}
+		Logger.getLogger(Main.class.getName()).log(Level.INFO, "sessions closed: {0}, not drained in time: {1}", new Object[]{closing.size(), forced});
 		nettyListener.shutdown();
 	}
 }
@@ -0,0 +1,54 @@
+package ru.carabi.server.eventer;
+
+import ru.carabi.libs.CarabiEventType;
+
+/**
+ * Трассировка жизненного цикла сообщений.
+ * Реализация на JDK Flight Recorder (ru.carabi.server.eventer.jfr.JfrMessageTracer)
+ * собирается профилем jfr на JDK 11 и новее; см. {@link Tracing}.
+ * Сессии обозначаются номером подключения ({@link MessagesHandler#getSessionId()}),
+ * а не токеном, чтобы записи можно было передавать для анализа.
+ */
+public interface MessageTracer {
+	/**
+	 * Из канала прочитано сообщение.
+	 * @param sessionId номер подключения
+	 * @param code код типа сообщения
+	 * @param bytes длина текста в байтах
+	 */
+	void frameDecoded(long sessionId, short code, int bytes);
+	
+	/**
+	 * Сообщение обработано ({@link CarabiMessage#handle}).
+	 * @param sessionId номер подключения
+	 * @param type тип сообщения
+	 * @param queuedNanos время от чтения до начала обработки (передача в поток обработки)
+	 * @param handleNanos время обработки
+	 */
+	void handled(long sessionId, CarabiEventType type, long queuedNanos, long handleNanos);
+	
+	/**
+	 * Событие разослано клиентам ({@link ClientsHolder#fireEvent}).
+	 * @param eventCode код события
+	 * @param schema схема получателей
+	 * @param login логин получателя
+	 * @param recipients число получателей
+	 * @param nanos время рассылки
+	 */
+	void fanout(int eventCode, String schema, String login, int recipients, long nanos);
+	
+	/**
+	 * Выполнен вызов SOAP-сервера.
+	 * @param operation операция
+	 * @param nanos время вызова
+	 * @param success вызов завершился без исключения
+	 */
+	void soapCall(String operation, long nanos, boolean success);
+	
+	/**
+	 * Изменилась возможность записи в канал (заполнен или освобождён буфер отправки).
+	 * @param sessionId номер подключения
+	 * @param writable запись возможна
+	 */
+	void writabilityChanged(long sessionId, boolean writable);
+}
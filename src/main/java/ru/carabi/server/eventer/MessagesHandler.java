@@ -1,12 +1,14 @@
 package ru.carabi.server.eventer;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
-import io.netty.util.ReferenceCountUtil;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
 import java.nio.charset.Charset;
-import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import ru.carabi.libs.CarabiEventType;
@@ -17,27 +19,50 @@ import static ru.carabi.libs.CarabiEventType.auth;
  * Клиент должен подключиться и отправить сообщение с токеном авторизации.
  * Сервер будет отправлять клиенту сообщения о системных событиях.
  * Каждое сообщение включает два байта с типом, строку с данными и терминальный ноль,
- * объём сообщения не должен превышать 10 КиБ
+ * объём сообщения не должен превышать 10 КиБ.
+ * Сообщения разбираются прямо из прочитанного буфера; собственный буфер
+ * подключение держит только пока сообщение пришло не целиком, чтобы
+ * простаивающие подключения не занимали памяти под чтение.
  */
 public class MessagesHandler extends ChannelInboundHandlerAdapter {
 	private static final Logger logger = Logger.getLogger(MessagesHandler.class.getName());
+	static final int SESSION_INTERVAL = Math.max(1, Main.getIntSetting("SESSION_INTERVAL", 30));//интервал проверки сессии в секундах
+	//подключение закрывается на проверке, следующей за последним пингом, -- через SESSION_TIMEOUT секунд молчания
+	private static final int MAX_PINGS_UNANSWERED = Math.max(1, (Main.getIntSetting("SESSION_TIMEOUT", 90) + SESSION_INTERVAL - 1) / SESSION_INTERVAL - 1);
+	private static final long ACTIVITY_GRANULARITY = TimeUnit.SECONDS.toNanos(SESSION_INTERVAL);
+	//неавторизованное подключение закрывается после стольких проверок без чтения (0 -- не закрывается)
+	private static final int MAX_IDLE_CHECKS_UNAUTHENTICATED = (Math.max(0, Main.getIntSetting("UNAUTHENTICATED_TIMEOUT", 0)) + SESSION_INTERVAL - 1) / SESSION_INTERVAL;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
 	private ChannelHandlerContext myctx;
 
-	private final Properties utilProperties = new Properties();//Свойства привязанные к клиенту, не имеющие отношения к протоколу
+	//Свойства привязанные к клиенту, не имеющие отношения к протоколу
+	private volatile String soapToken;//расшифрованный токен SOAP-сервера (после авторизации)
+	private volatile String shutdownKey;//ключ для отключения сервера (см. Shutdown)
+	private volatile boolean testingSession;//отправлен проверочный пинг, понг нужно передать SOAP-серверу
 	
-	private boolean readHead = true; //в данный момент читаем заголовок (два байта)
-	private short messageTypeCode;
 	private String token;
-	private ByteBuf readingBuffer = null;// = Unpooled.directBuffer();
-	private ByteBuf messageBuffer;
+	private volatile String schema = "";//схема пользователя (после авторизации)
+	private static final AtomicLong sessionIds = new AtomicLong();
+	private final long sessionId = sessionIds.incrementAndGet();//номер подключения для трассировки
+	private ByteBuf cumulation;//начало недочитанного сообщения (null, если такого нет)
+	private int scanned;//сколько байт текста недочитанного сообщения уже проверено на терминальный ноль
+	private OutboundLanes outbound;
+	private int pingsUnanswered = 0;//сколько проверок прошло без чтения (для авторизованных -- сколько отправлено пингов)
+	private long activityReported;//когда активность клиента последний раз передана в ClientsHolder (System.nanoTime())
+	private long lastPing;//когда клиенту последний раз отправлен проверочный пинг (System.nanoTime())
 
+	/**
+	 * Подготовка к чтению.
+	 * Обработчик добавляется в уже зарегистрированный канал (после определения
+	 * протокола в {@link PortUnificationHandler}), поэтому инициализация
+	 * выполняется здесь, а не в channelRegistered.
+	 */
 	@Override
-	public void channelRegistered(ChannelHandlerContext ctx) throws Exception {
-		super.channelRegistered(ctx); //To change body of generated methods, choose Tools | Templates.
+	public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+		super.handlerAdded(ctx);
 		myctx = ctx;
-		logger.fine("channelRegistered");
-		logger.setLevel(Level.FINE);
-		readingBuffer = Unpooled.directBuffer();
+		logger.fine("handlerAdded");
+		outbound = new OutboundLanes(ctx);
 	}
 	
 	/**
@@ -50,47 +75,163 @@ public class MessagesHandler extends ChannelInboundHandlerAdapter {
 		if (myctx != ctx) {
 			logger.warning("New CTX!");
 		}
+		pingsUnanswered = 0;
 		ByteBuf in = (ByteBuf) msg;
-		//Копируем в локальный буфер
-		readingBuffer.writeBytes(in);
-		in.release();
-		while (readingBuffer.isReadable()) {
-			if (readHead) {//Читаем два байта заголовка
-				if (readingBuffer.readableBytes() < 2) {
+		ByteBuf data = in;
+		if (cumulation != null) {
+			cumulation.writeBytes(in);
+			in.release();
+			data = cumulation;
+		}
+		while (data.readableBytes() >= 2) {
+			int head = data.readerIndex();
+			int from = head + 2 + scanned;
+			int found = data.bytesBefore(from, data.writerIndex() - from, (byte) 0);
+			if (found < 0) {//Терминального нуля ещё нет -- ждём продолжения
+				scanned = data.writerIndex() - head - 2;
+				break;
+			}
+			int length = scanned + found;
+			scanned = 0;
+			short messageTypeCode = data.getShort(head);
+			String message = data.toString(head + 2, length, UTF8);
+			data.readerIndex(head + 2 + length + 1);
+			CarabiEventType messageType= CarabiEventType.getTypeByCode(messageTypeCode);
+			if (messageType == null) {
+				messageType = CarabiEventType.error;
+			}
+			EventerStats.frameDecoded(messageType);
+			Tracing.frameDecoded(sessionId, messageTypeCode, length);
+			if (!admit(messageType, ctx)) {
+				if (messageType == auth) {
+					data.release();
+					cumulation = null;
+					ctx.close();
 					return;
 				}
-				messageTypeCode = readingBuffer.readShort();
-				readHead = false;
-				messageBuffer = Unpooled.directBuffer(10240);
+				continue;
 			}
-			if (!readHead && readingBuffer.readableBytes() >= 1) {//Потом читаем до терминального нуля, складывая в отдельный буфер
-				int bt = 0;
-				while (readingBuffer.isReadable() && !readHead) {
-					bt = (int) readingBuffer.readByte();
-					if (bt == 0) {//Терминальный ноль
-						readHead = true;
-						String message = messageBuffer.toString(Charset.forName("UTF-8"));
-						CarabiEventType messageType= CarabiEventType.getTypeByCode(messageTypeCode);
-						if (messageType == null) {
-							messageType = CarabiEventType.error;
-						}
-						final CarabiMessage carabiMessage = CarabiMessage.readCarabiMessage(message, messageType, this);
-						if (carabiMessage.getType() == auth) {
-							token = message;
-						}
-						ReferenceCountUtil.release(messageBuffer);
-						new Thread(new Runnable() {
-							@Override
-							public void run() {
-								carabiMessage.handle(token);
-							}
-						}).start();
-					} else {
-						messageBuffer.writeByte(bt);
-					}
-				}
+			CarabiMessage carabiMessage = CarabiMessage.readCarabiMessage(message, messageType, this);
+			if (carabiMessage.getType() == auth) {
+				token = message;
+				lastPing = System.nanoTime();
+			}
+			dispatch(carabiMessage);
+		}
+		if (!data.isReadable()) {
+			data.release();
+			cumulation = null;
+		} else if (data == in) {//Сохраняем начало сообщения до следующего чтения
+			cumulation = ctx.alloc().buffer(in.readableBytes());
+			cumulation.writeBytes(in);
+			in.release();
+		} else {
+			cumulation.discardReadBytes();
+		}
+		//клиент на связи -- отмечаем активность, как при ответе на пинг, но не чаще раза за SESSION_INTERVAL
+		if (token != null) {
+			long now = System.nanoTime();
+			if (activityReported == 0 || now - activityReported >= ACTIVITY_GRANULARITY) {
+				activityReported = now;
+				ClientsHolder.updateLastActive(token);
 			}
+			//занятый клиент не простаивает, но сессию на сервере с базой нужно обновлять и ему
+			if (now - lastPing >= ACTIVITY_GRANULARITY && ClientsHolder.clientlIsRegistered(token)) {
+				ping();
+			}
+		}
+	}
+	
+	/**
+	 * Передача прочитанного сообщения на обработку в очередь схемы
+	 * (см. {@link SchemaDispatcher}). Сообщение сверх лимита очереди
+	 * отбрасывается и учитывается в статистике схемы.
+	 * @param carabiMessage сообщение
+	 */
+	void dispatch(final CarabiMessage carabiMessage) {
+		final long dispatched = System.nanoTime();
+		String queue = schema;
+		if (queue.isEmpty() && carabiMessage.getType() == CarabiEventType.fireEvent) {
+			//события от неавторизованных подключений (SOAP-сервера) не должны задерживать авторизацию
+			queue = SchemaDispatcher.FIRE_EVENT_QUEUE;
 		}
+		SchemaDispatcher.execute(queue, new Runnable() {
+			@Override
+			public void run() {
+				long start = System.nanoTime();
+				carabiMessage.handle(token);
+				long handleTime = System.nanoTime() - start;
+				EventerStats.handled(carabiMessage.getType(), handleTime);
+				Tracing.handled(sessionId, carabiMessage.getType(), start - dispatched, handleTime);
+			}
+		});
+	}
+	
+	/**
+	 * Ограничение частоты авторизаций и событий до передачи сообщения на обработку.
+	 * Отклонённая авторизация закрывает соединение, отклонённое событие отбрасывается.
+	 */
+	private boolean admit(CarabiEventType messageType, ChannelHandlerContext ctx) {
+		switch (messageType) {
+			case auth:
+				return AdmissionControl.tryAcquire(AdmissionControl.Kind.AUTH, ctx.channel().remoteAddress());
+			case fireEvent:
+				return AdmissionControl.tryAcquire(AdmissionControl.Kind.FIRE_EVENT, ctx.channel().remoteAddress());
+			default:
+				return true;
+		}
+	}
+	
+	/**
+	 * Проверка связи с клиентом.
+	 * Если от авторизованного клиента ничего не приходило SESSION_INTERVAL секунд,
+	 * отправляем ему пинг (ответный понг также обновляет сессию на сервере
+	 * с базой; клиентам, от которых приходят данные, пинг для этого
+	 * отправляется из channelRead не реже раза за SESSION_INTERVAL). Если после MAX_PINGS_UNANSWERED пингов клиент так ничего и не
+	 * прислал, на следующей проверке (через SESSION_TIMEOUT секунд молчания,
+	 * но не раньше двух интервалов) закрываем соединение. Клиентам, приславшим
+	 * что-либо недавно, пинг не отправляется.
+	 * Неавторизованные подключения (SOAP-сервер с сообщениями fireEvent,
+	 * WebSocket до авторизации) не пингуются; молчащее UNAUTHENTICATED_TIMEOUT
+	 * секунд такое подключение закрывается (0 &mdash; не закрывается: подключения
+	 * SOAP-сервера долгоживущие и могут подолгу простаивать).
+	 */
+	@Override
+	public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+		if (!(evt instanceof IdleStateEvent)) {
+			super.userEventTriggered(ctx, evt);
+			return;
+		}
+		if (((IdleStateEvent) evt).state() != IdleState.READER_IDLE) {
+			return;
+		}
+		if (token == null) {
+			if (MAX_IDLE_CHECKS_UNAUTHENTICATED > 0 && ++pingsUnanswered >= MAX_IDLE_CHECKS_UNAUTHENTICATED) {
+				logger.fine("unauthenticated connection is idle, closing");
+				ctx.close();
+			}
+			return;
+		}
+		if (!ClientsHolder.clientlIsRegistered(token)) {
+			return;
+		}
+		if (pingsUnanswered >= MAX_PINGS_UNANSWERED) {
+			logger.info("client does not answer, closing");
+			ctx.close();
+			return;
+		}
+		pingsUnanswered++;
+		ping();
+	}
+	
+	/**
+	 * Проверочный пинг: понг на него передаётся SOAP-серверу
+	 * для обновления сессии (см. Pong).
+	 */
+	private void ping() {
+		lastPing = System.nanoTime();
+		testingSession = true;
+		CarabiMessage.writeCarabiMessage("TEST_SESSION_PING", CarabiEventType.ping, false, this).post(token);
 	}
 
 	@Override
@@ -102,6 +243,15 @@ public class MessagesHandler extends ChannelInboundHandlerAdapter {
 		}
 	}
 
+	@Override
+	public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+		Tracing.writabilityChanged(sessionId, ctx.channel().isWritable());
+		if (ctx.channel().isWritable()) {
+			outbound.drain();
+		}
+		super.channelWritabilityChanged(ctx);
+	}
+	
 	@Override
 	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
 		super.channelInactive(ctx); //To change body of generated methods, choose Tools | Templates.
@@ -115,15 +265,18 @@ public class MessagesHandler extends ChannelInboundHandlerAdapter {
 	public void channelUnregistered(ChannelHandlerContext ctx) throws Exception {
 		super.channelUnregistered(ctx); //To change body of generated methods, choose Tools | Templates.
 		logger.fine("channelUnregistered");
-		readingBuffer.clear();
-		readingBuffer.release();
+		if (cumulation != null) {
+			cumulation.release();
+			cumulation = null;
+		}
+		outbound.close();
 		new Thread(new Runnable() {
 			@Override
 			public void run() {
 				ClientsHolder.delClient(token);
-				if (utilProperties.getProperty("soapToken") != null) {
+				if (soapToken != null) {
 					try {
-						SoapGateway.chatServicePort.fireUserState(token, false);
+						SoapGateway.fireUserState(token, false);
 					} catch (Exception ex) {
 						Logger.getLogger(MessagesHandler.class.getName()).log(Level.SEVERE, null, ex);
 					}
@@ -142,10 +295,76 @@ public class MessagesHandler extends ChannelInboundHandlerAdapter {
 		ctx.close();
 	}
 
+	/**
+	 * Держит ли подключение буфер недочитанного сообщения.
+	 */
+	boolean hasPartialFrame() {
+		return cumulation != null;
+	}
+	
+	/**
+	 * Номер подключения (для трассировки, вместо токена).
+	 */
+	long getSessionId() {
+		return sessionId;
+	}
+	
+	/**
+	 * Отправка закодированного сообщения клиенту с учётом приоритета.
+	 * @param buffer сообщение
+	 * @param lane приоритет (см. {@link OutboundLanes})
+	 */
+	void write(ByteBuf buffer, OutboundLanes.Lane lane) {
+		outbound.write(buffer, lane);
+	}
+	
+	/**
+	 * Отправка события с ключом замещения и сроком жизни.
+	 * @param buffer событие
+	 * @param key ключ замещения (null &mdash; нет)
+	 * @param expiresAt момент истечения срока жизни по System.nanoTime() (0 &mdash; бессрочно)
+	 */
+	void write(ByteBuf buffer, String key, long expiresAt) {
+		outbound.write(buffer, key, expiresAt);
+	}
+	
+	/**
+	 * Закрыть подключение после передачи клиенту ожидающих сообщений.
+	 * @return закрытие канала
+	 */
+	ChannelFuture closeWhenDrained() {
+		return outbound.closeWhenDrained();
+	}
+	
+	void setSchema(String schema) {
+		this.schema = schema;
+	}
+	
 	ChannelHandlerContext getChannel() {
 		return myctx;
 	}
-	public Properties getUtilProperties() {
-		return utilProperties;
+	
+	String getSoapToken() {
+		return soapToken;
+	}
+	
+	void setSoapToken(String soapToken) {
+		this.soapToken = soapToken;
+	}
+	
+	String getShutdownKey() {
+		return shutdownKey;
+	}
+	
+	void setShutdownKey(String shutdownKey) {
+		this.shutdownKey = shutdownKey;
+	}
+	
+	boolean isTestingSession() {
+		return testingSession;
+	}
+	
+	void setTestingSession(boolean testingSession) {
+		this.testingSession = testingSession;
 	}
 }
@@ -1,23 +1,48 @@
 package ru.carabi.server.eventer;
 
+import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
-import java.net.DatagramSocket;
+import io.netty.handler.timeout.IdleStateHandler;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Приём TCP-подключений клиентов.
+ * Порт может обслуживаться несколькими приёмниками (ACCEPTORS) &mdash; тогда
+ * каждый открывает свой серверный сокет с SO_REUSEPORT, а ядро распределяет
+ * между ними входящие соединения. У каждого приёмника свои потоки приёма и
+ * обработки. SO_REUSEPORT (REUSE_PORT) также позволяет занять один порт
+ * несколькими процессами Eventer-а. Требуется Linux с транспортом epoll.
+ * На том же порту принимаются подключения WebSocket
+ * (см. {@link PortUnificationHandler}).
+ * Если задан UDP_PORT, по UDP принимаются события от SOAP-сервера
+ * (см. {@link EventDatagramHandler}).
+ */
 public class NettyListener {
 	private static final Logger logger = Logger.getLogger(NettyListener.class.getName());
 	private boolean released;
-	private final DatagramSocket dsocket = null;
-	private EventLoopGroup bossGroup;
-	private EventLoopGroup workerGroup;
+	private final List<EventLoopGroup> eventLoopGroups = new ArrayList<>();
+	private final List<Channel> serverChannels = new ArrayList<>();
+	private Channel datagramChannel;
+	private volatile boolean draining = false;
 	
 	public boolean isReleased() {
 		return released;
@@ -26,37 +51,130 @@ public class NettyListener {
 	public void start(int port) {
 		logger.log(Level.INFO, "starting listener");
 		logger.log(Level.INFO, "listening on port {0}", port);
-		bossGroup = new NioEventLoopGroup();
-		workerGroup = new NioEventLoopGroup();
+		int acceptors = Math.max(1, Main.getIntSetting("ACCEPTORS", 1));
+		boolean reusePort = acceptors > 1 || Main.getBooleanSetting("REUSE_PORT", false);
+		if (reusePort && !Epoll.isAvailable()) {
+			logger.log(Level.WARNING, "SO_REUSEPORT is not available, using single acceptor", (Throwable) Epoll.unavailabilityCause());
+			acceptors = 1;
+			reusePort = false;
+		}
+		int workerThreads = Main.getIntSetting("WORKER_THREADS", 0);
+		if (workerThreads <= 0) {
+			workerThreads = Math.max(1, Runtime.getRuntime().availableProcessors() * 2 / acceptors);
+		}
 		try {
-			ServerBootstrap b = new ServerBootstrap();
-			b.group(bossGroup, workerGroup)
-			.channel(NioServerSocketChannel.class)
-			.childHandler(new ChannelInitializer<SocketChannel>() {
-				@Override
-				public void initChannel(SocketChannel ch) throws Exception {
-					ch.pipeline().addLast(new MessagesHandler());
+			for (int i = 0; i < acceptors; i++) {
+				serverChannels.add(bind(port, reusePort, workerThreads));
+			}
+			logger.log(Level.INFO, "acceptors: {0}, SO_REUSEPORT: {1}", new Object[]{acceptors, reusePort});
+			int datagramPort = Main.getIntSetting("UDP_PORT", 0);
+			if (datagramPort > 0) {
+				datagramChannel = bindDatagram(Main.getSetting("UDP_BIND", "127.0.0.1"), datagramPort);
+				logger.log(Level.INFO, "listening for events on UDP {0}", datagramChannel.localAddress());
+				if (!CryptoEngine.isSigningEnabled()) {
+					logger.warning("FIRE_EVENT_MAC_KEY is not set: all UDP datagrams will be rejected");
 				}
-			})
-			.option(ChannelOption.SO_BACKLOG, 128)
-			.childOption(ChannelOption.SO_KEEPALIVE, true);
-
-			// Bind and start to accept incoming connections.
-			ChannelFuture f = b.bind(port).sync();
-
+			}
+			logger.log(Level.INFO, "started in {0} ms", ManagementFactory.getRuntimeMXBean().getUptime());
 			System.out.println("Started OK");
-			// Wait until the server socket is closed.
-			f.channel().closeFuture().sync();
+			// Wait until the server sockets are closed.
+			for (Channel serverChannel: serverChannels) {
+				serverChannel.closeFuture().sync();
+			}
 		} catch (InterruptedException ex) {
 			Logger.getLogger(NettyListener.class.getName()).log(Level.SEVERE, null, ex);
 		} finally {
-			workerGroup.shutdownGracefully();
-			bossGroup.shutdownGracefully();
+			//при остановке с освобождением очередей потоки завершает Main.shutdown
+			if (!draining) {
+				shutdown();
+			}
+		}
+	}
+	
+	/**
+	 * Открытие одного серверного сокета со своими группами потоков.
+	 * @param port порт
+	 * @param reusePort использовать SO_REUSEPORT (epoll)
+	 * @param workerThreads число потоков обработки подключений
+	 * @return серверный канал
+	 */
+	private Channel bind(int port, boolean reusePort, int workerThreads) throws InterruptedException {
+		EventLoopGroup bossGroup;
+		EventLoopGroup workerGroup;
+		Class<? extends ServerChannel> channelClass;
+		if (reusePort) {
+			bossGroup = new EpollEventLoopGroup(1);
+			workerGroup = new EpollEventLoopGroup(workerThreads);
+			channelClass = EpollServerSocketChannel.class;
+		} else {
+			bossGroup = new NioEventLoopGroup(1);
+			workerGroup = new NioEventLoopGroup(workerThreads);
+			channelClass = NioServerSocketChannel.class;
+		}
+		eventLoopGroups.add(bossGroup);
+		eventLoopGroups.add(workerGroup);
+		ServerBootstrap b = new ServerBootstrap();
+		b.group(bossGroup, workerGroup)
+		.channel(channelClass)
+		.childHandler(new ChannelInitializer<SocketChannel>() {
+			@Override
+			public void initChannel(SocketChannel ch) throws Exception {
+				if (!AdmissionControl.tryAcquire(AdmissionControl.Kind.ACCEPT, ch.remoteAddress())) {
+					ch.close();
+					return;
+				}
+				ch.pipeline().addLast(new IdleStateHandler(MessagesHandler.SESSION_INTERVAL, 0, 0));
+				ch.pipeline().addLast(new PortUnificationHandler());
+			}
+		})
+		.option(ChannelOption.SO_BACKLOG, Main.getIntSetting("SO_BACKLOG", 128))
+		.childOption(ChannelOption.SO_KEEPALIVE, true);
+		if (reusePort) {
+			b.option(EpollChannelOption.SO_REUSEPORT, true);
+		}
+		// Bind and start to accept incoming connections.
+		return b.bind(port).sync().channel();
+	}
+
+	/**
+	 * Открытие UDP-сокета для приёма событий от SOAP-сервера.
+	 * @param host локальный адрес
+	 * @param port порт
+	 * @return канал датаграмм
+	 */
+	private Channel bindDatagram(String host, int port) throws InterruptedException {
+		EventLoopGroup group = new NioEventLoopGroup(1);
+		eventLoopGroups.add(group);
+		Bootstrap b = new Bootstrap();
+		b.group(group)
+		.channel(NioDatagramChannel.class)
+		.option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(Main.getIntSetting("UDP_MAX_PACKET", 65507)))
+		.option(ChannelOption.SO_RCVBUF, Main.getIntSetting("UDP_RCVBUF", 1 << 20))
+		.handler(new EventDatagramHandler());
+		return b.bind(host, port).sync().channel();
+	}
+
+	/**
+	 * Прекращение приёма подключений и датаграмм; открытые подключения
+	 * продолжают работать до {@link #shutdown}.
+	 */
+	public void stopAccepting() {
+		draining = true;
+		List<ChannelFuture> closing = new ArrayList<>();
+		for (Channel serverChannel: serverChannels) {
+			closing.add(serverChannel.close());
+		}
+		if (datagramChannel != null) {
+			closing.add(datagramChannel.close());
+		}
+		for (ChannelFuture future: closing) {
+			future.awaitUninterruptibly();
 		}
 	}
 
 	public void shutdown() {
-		workerGroup.shutdownGracefully();
-		bossGroup.shutdownGracefully();
+		for (EventLoopGroup group: eventLoopGroups) {
+			group.shutdownGracefully();
+		}
 	}
 }
@@ -0,0 +1,288 @@
+package ru.carabi.server.eventer;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Исходящие сообщения подключения, разделённые по приоритету.
+ * Управляющие сообщения (ответы на Ping, Pong, Auth, Shutdown и пинги сервера)
+ * записываются в канал сразу. Остальные (события fireEvent, автоматическая
+ * рассылка) ставятся в очередь подключения и передаются в канал в потоке Netty,
+ * пока канал доступен для записи; при освобождении канала
+ * ({@link MessagesHandler#channelWritabilityChanged}) передача продолжается.
+ * Поэтому управляющее сообщение ждёт только данные, уже переданные в сокет,
+ * а не всю очередь событий, и пинги не опаздывают при массовой рассылке.
+ * <p>
+ * Очередь событий ограничена BULK_QUEUE_LIMIT сообщениями; сверх этого новые
+ * события отбрасываются.
+ * <p>
+ * Событие может иметь ключ и срок жизни. Событие с ключом заменяет ещё не
+ * переданное в канал событие подключения с тем же ключом (клиент получает
+ * только последнее значение, очередь не растёт), событие с истёкшим сроком
+ * жизни не передаётся.
+ * <p>
+ * При остановке сервера подключение закрывается после передачи очереди
+ * ({@link #closeWhenDrained}).
+ */
+final class OutboundLanes {
+	private static final int BULK_QUEUE_LIMIT = Main.getIntSetting("BULK_QUEUE_LIMIT", 10000);
+
+	/**
+	 * Приоритет сообщения.
+	 */
+	enum Lane {
+		CONTROL,
+		BULK
+	}
+
+	private final ChannelHandlerContext ctx;
+	private final Queue<Frame> bulk = new ConcurrentLinkedQueue<>();
+	/**
+	 * Ожидающие передачи события с ключами (создаётся при первом таком событии).
+	 */
+	private volatile ConcurrentHashMap<String, Frame> keyed;
+	//счётчики в полях, а не в отдельных объектах: экземпляр есть у каждого подключения
+	private static final AtomicIntegerFieldUpdater<OutboundLanes> BULK_SIZE = AtomicIntegerFieldUpdater.newUpdater(OutboundLanes.class, "bulkSize");
+	private static final AtomicIntegerFieldUpdater<OutboundLanes> DRAIN_SCHEDULED = AtomicIntegerFieldUpdater.newUpdater(OutboundLanes.class, "drainScheduled");
+	private volatile int bulkSize;
+	private volatile int drainScheduled;//1 -- передача очереди уже запланирована
+	private volatile boolean closed = false;
+	//закрытие после передачи очереди (только в потоке Netty)
+	private boolean closing = false;
+	private boolean closeRequested = false;
+	private ChannelFuture lastWrite;
+	private final Runnable drainTask = new Runnable() {
+		@Override
+		public void run() {
+			drainScheduled = 0;
+			drain();
+		}
+	};
+
+	OutboundLanes(ChannelHandlerContext ctx) {
+		this.ctx = ctx;
+	}
+
+	/**
+	 * Отправка сообщения. Может вызываться из любого потока.
+	 * @param buffer закодированное сообщение
+	 * @param lane приоритет
+	 */
+	void write(ByteBuf buffer, Lane lane) {
+		if (lane == Lane.BULK) {
+			write(buffer, null, 0);
+			return;
+		}
+		final Frame frame = new Frame(buffer, lane, null, 0);
+		if (ctx.executor().inEventLoop()) {
+			writeControl(frame);
+		} else {
+			ctx.executor().execute(new Runnable() {
+				@Override
+				public void run() {
+					writeControl(frame);
+				}
+			});
+		}
+	}
+
+	private void writeControl(Frame frame) {
+		lastWrite = ctx.writeAndFlush(frame.buffer);
+		lastWrite.addListener(frame);
+	}
+
+	/**
+	 * Постановка события в очередь. Может вызываться из любого потока.
+	 * @param buffer закодированное событие
+	 * @param key ключ замещения (null &mdash; событие не замещает другие)
+	 * @param expiresAt момент истечения срока жизни по System.nanoTime() (0 &mdash; бессрочно)
+	 */
+	void write(ByteBuf buffer, String key, long expiresAt) {
+		if (closed) {
+			buffer.release();
+			return;
+		}
+		if (key != null) {
+			Frame queued = getKeyed().get(key);
+			if (queued != null && queued.replace(buffer, expiresAt)) {
+				EventerStats.bulkCoalesced();
+				return;
+			}
+		}
+		if (BULK_SIZE.incrementAndGet(this) > BULK_QUEUE_LIMIT) {
+			BULK_SIZE.decrementAndGet(this);
+			buffer.release();
+			EventerStats.bulkDropped();
+			return;
+		}
+		Frame frame = new Frame(buffer, Lane.BULK, key, expiresAt);
+		if (key != null) {
+			keyed.put(key, frame);
+		}
+		bulk.add(frame);
+		if (closed) {
+			releaseQueued();
+			return;
+		}
+		if (ctx.executor().inEventLoop()) {
+			drain();
+		} else if (DRAIN_SCHEDULED.compareAndSet(this, 0, 1)) {
+			ctx.executor().execute(drainTask);
+		}
+	}
+
+	private ConcurrentHashMap<String, Frame> getKeyed() {
+		ConcurrentHashMap<String, Frame> result = keyed;
+		if (result == null) {
+			synchronized (this) {
+				result = keyed;
+				if (result == null) {
+					result = new ConcurrentHashMap<>();
+					keyed = result;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Извлечение следующего события для передачи: заменённые пропускаются,
+	 * просроченные освобождаются.
+	 */
+	private Frame pollBulk() {
+		Frame frame;
+		while ((frame = bulk.poll()) != null) {
+			frame.take();
+			BULK_SIZE.decrementAndGet(this);
+			if (frame.key != null) {
+				keyed.remove(frame.key, frame);
+			}
+			if (frame.expiresAt != 0 && System.nanoTime() - frame.expiresAt > 0) {
+				frame.buffer.release();
+				EventerStats.bulkExpired();
+				continue;
+			}
+			return frame;
+		}
+		return null;
+	}
+
+	/**
+	 * Передача очереди событий в канал, пока он доступен для записи.
+	 * Вызывается в потоке Netty.
+	 */
+	void drain() {
+		boolean written = false;
+		Frame frame;
+		while (ctx.channel().isWritable() && (frame = pollBulk()) != null) {
+			lastWrite = ctx.write(frame.buffer);
+			lastWrite.addListener(frame);
+			written = true;
+		}
+		if (written) {
+			ctx.flush();
+		}
+		if (closing && !closeRequested && bulk.isEmpty()) {
+			closeRequested = true;
+			if (lastWrite == null || lastWrite.isDone()) {
+				ctx.close();
+			} else {
+				lastWrite.addListener(ChannelFutureListener.CLOSE);
+			}
+		}
+	}
+
+	/**
+	 * Закрыть подключение, когда все отправленные до этого сообщения будут
+	 * переданы в сокет. Может вызываться из любого потока.
+	 * @return закрытие канала
+	 */
+	ChannelFuture closeWhenDrained() {
+		ctx.executor().execute(new Runnable() {
+			@Override
+			public void run() {
+				closing = true;
+				drain();
+			}
+		});
+		return ctx.channel().closeFuture();
+	}
+
+	/**
+	 * Число событий, ожидающих передачи в канал.
+	 */
+	int getBulkQueued() {
+		return bulkSize;
+	}
+
+	/**
+	 * Закрытие подключения: неотправленные события освобождаются.
+	 */
+	void close() {
+		closed = true;
+		releaseQueued();
+	}
+
+	private void releaseQueued() {
+		Frame frame;
+		while ((frame = bulk.poll()) != null) {
+			frame.take();
+			BULK_SIZE.decrementAndGet(this);
+			frame.buffer.release();
+		}
+	}
+
+	/**
+	 * Сообщение в очереди; после записи в сокет учитывает время ожидания.
+	 * Событие с ключом, пока оно в очереди, может быть заменено новым
+	 * значением ({@link #replace}); место в очереди при этом сохраняется.
+	 */
+	private static final class Frame implements ChannelFutureListener {
+		final Lane lane;
+		final String key;
+		final long queued = System.nanoTime();
+		//изменяются под монитором, пока событие в очереди
+		ByteBuf buffer;
+		long expiresAt;
+		private boolean taken = false;
+
+		Frame(ByteBuf buffer, Lane lane, String key, long expiresAt) {
+			this.buffer = buffer;
+			this.lane = lane;
+			this.key = key;
+			this.expiresAt = expiresAt;
+		}
+
+		/**
+		 * Событие забрано из очереди: больше не заменяется.
+		 */
+		synchronized void take() {
+			taken = true;
+		}
+
+		/**
+		 * Заменить ожидающее событие новым значением.
+		 * @return false, если событие уже забрано из очереди
+		 */
+		synchronized boolean replace(ByteBuf newBuffer, long newExpiresAt) {
+			if (taken) {
+				return false;
+			}
+			buffer.release();
+			buffer = newBuffer;
+			expiresAt = newExpiresAt;
+			return true;
+		}
+
+		@Override
+		public void operationComplete(ChannelFuture future) {
+			EventerStats.laneQueueTime(lane, System.nanoTime() - queued);
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package ru.carabi.server.eventer;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.websocketx.WebSocketFrameAggregator;
+import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
+import java.util.List;
+
+/**
+ * Определение протокола подключения на LISTEN_PORT.
+ * Бинарный протокол Carabi начинается со старшего байта кода типа (для
+ * известных типов он нулевой), а подключение WebSocket &mdash; с HTTP-запроса
+ * "GET ...". По первому байту в конвейер добавляются нужные обработчики, после
+ * чего этот обработчик удаляется, а прочитанные данные передаются дальше.
+ * В обоих случаях сообщения обрабатывает {@link MessagesHandler}, и сессии
+ * попадают в общий {@link ClientsHolder}.
+ */
+public class PortUnificationHandler extends ByteToMessageDecoder {
+	private static final int MAX_HTTP_CONTENT = 65536;
+	private static final String WEBSOCKET_PATH = Main.getSetting("WEBSOCKET_PATH", "/eventer");
+	
+	@Override
+	protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+		if (!in.isReadable()) {
+			return;
+		}
+		ChannelPipeline pipeline = ctx.pipeline();
+		if (in.getUnsignedByte(in.readerIndex()) == 'G') {
+			pipeline.addLast(new HttpServerCodec());
+			pipeline.addLast(new HttpObjectAggregator(MAX_HTTP_CONTENT));
+			pipeline.addLast(new WebSocketServerProtocolHandler(WEBSOCKET_PATH));
+			pipeline.addLast(new WebSocketFrameAggregator(MAX_HTTP_CONTENT));
+			pipeline.addLast(new WebSocketFrameCodec());
+		}
+		pipeline.addLast(new MessagesHandler());
+		pipeline.remove(this);
+	}
+}
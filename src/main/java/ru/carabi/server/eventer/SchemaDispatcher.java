@@ -0,0 +1,121 @@
+package ru.carabi.server.eventer;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Обработка входящих сообщений пулом потоков с разделением по схемам.
+ * У каждой схемы своя очередь; потоки пула (DISPATCH_THREADS) берут схемы
+ * с ожидающими сообщениями по кругу и выполняют по одному сообщению, поэтому
+ * схема, засыпающая сервер сообщениями, не задерживает остальные. Одновременно
+ * обрабатывается не больше SCHEMA_CONCURRENCY сообщений одной схемы
+ * (0 &mdash; без ограничения). Сообщения неавторизованных подключений
+ * (авторизация с обращением к SOAP-серверу) ограничены так же, но всегда
+ * оставляют свободным хотя бы один поток пула, чтобы медленный SOAP-сервер
+ * при массовом переподключении не останавливал обработку схем и событий.
+ * В очереди схемы ожидает не больше SCHEMA_QUEUE_LIMIT сообщений
+ * (0 &mdash; без ограничения), сообщения сверх лимита отбрасываются.
+ */
+final class SchemaDispatcher {
+	private static final Logger logger = Logger.getLogger(SchemaDispatcher.class.getName());
+	/**
+	 * Очередь событий fireEvent от неавторизованных подключений.
+	 */
+	static final String FIRE_EVENT_QUEUE = "*fireEvent";
+	private static final int threads = Math.max(1, Main.getIntSetting("DISPATCH_THREADS", 32));
+	private static final int concurrency = getConcurrency();
+	//авторизация не может занять весь пул
+	private static final int authConcurrency = Math.max(1, Math.min(concurrency, threads - 1));
+	private static final int queueLimit = Main.getIntSetting("SCHEMA_QUEUE_LIMIT", 10000);
+	/**
+	 * Схемы, у которых есть сообщения и не исчерпан лимит одновременной обработки.
+	 */
+	private static final LinkedBlockingQueue<SchemaQuotas.Schema> ready = new LinkedBlockingQueue<>();
+
+	static {
+		for (int i = 0; i < threads; i++) {
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			}, "dispatch-" + i);
+			worker.setDaemon(true);
+			worker.start();
+		}
+	}
+
+	private SchemaDispatcher() {
+	}
+
+	private static int getConcurrency() {
+		int limit = Main.getIntSetting("SCHEMA_CONCURRENCY", 8);
+		return limit > 0 ? limit : threads;
+	}
+
+	/**
+	 * Поставить сообщение в очередь схемы.
+	 * @param schemaName схема сессии (пустая для неавторизованных)
+	 * @param task обработка сообщения
+	 * @return false, если очередь схемы переполнена и сообщение отброшено
+	 */
+	static boolean execute(String schemaName, Runnable task) {
+		SchemaQuotas.Schema schema = SchemaQuotas.get(schemaName);
+		synchronized (schema) {
+			if (queueLimit > 0 && schema.tasks.size() >= queueLimit) {
+				schema.dropped++;
+				EventerStats.dispatchDropped();
+				return false;
+			}
+			schema.tasks.add(task);
+			scheduleIfReady(schema);
+		}
+		return true;
+	}
+
+	/**
+	 * Поставить схему в круг, если у неё есть работа и свободен лимит.
+	 * Вызывается под монитором схемы.
+	 */
+	private static void scheduleIfReady(SchemaQuotas.Schema schema) {
+		int limit = schema.name.isEmpty() ? authConcurrency : concurrency;
+		if (!schema.scheduled && !schema.tasks.isEmpty() && schema.running < limit) {
+			schema.scheduled = true;
+			ready.add(schema);
+		}
+	}
+
+	private static void work() {
+		while (true) {
+			SchemaQuotas.Schema schema;
+			try {
+				schema = ready.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			Runnable task;
+			synchronized (schema) {
+				schema.scheduled = false;
+				task = schema.tasks.poll();
+				if (task == null) {
+					continue;
+				}
+				schema.running++;
+				//остальные сообщения схемы &mdash; в конец круга, после других схем
+				scheduleIfReady(schema);
+			}
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				logger.log(Level.SEVERE, null, e);
+			} finally {
+				schema.handled.incrementAndGet();
+				synchronized (schema) {
+					schema.running--;
+					scheduleIfReady(schema);
+				}
+			}
+		}
+	}
+}
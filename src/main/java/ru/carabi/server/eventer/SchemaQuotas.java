@@ -0,0 +1,142 @@
+package ru.carabi.server.eventer;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+
+/**
+ * Квоты и статистика по схемам (клиентам-организациям).
+ * Рассылка событий в схему ограничивается по частоте (SCHEMA_EVENT_RATE,
+ * событий в секунду) и по объёму отправляемых подписчикам данных
+ * (SCHEMA_BYTE_RATE, байт в секунду); 0 &mdash; без ограничения. События сверх
+ * квоты отбрасываются. Обработка входящих сообщений распределяется между
+ * схемами {@link SchemaDispatcher}. Статистика по схемам доступна через JMX
+ * (ru.carabi.server.eventer:type=SchemaQuotas) и в ответе на запрос состояния.
+ * Широковещательные события и сообщения неавторизованных сессий учитываются
+ * в схеме с пустым именем.
+ */
+public class SchemaQuotas implements SchemaQuotasMXBean {
+	private static final int eventRate = Main.getIntSetting("SCHEMA_EVENT_RATE", 0);
+	private static final int byteRate = Main.getIntSetting("SCHEMA_BYTE_RATE", 0);
+	private static final ConcurrentHashMap<String, Schema> schemas = new ConcurrentHashMap<>();
+
+	/**
+	 * Состояние одной схемы: вёдра квот, счётчики и очередь обработки сообщений.
+	 */
+	static final class Schema {
+		final String name;
+		private final TokenBucket eventBucket = eventRate > 0 ? new TokenBucket(eventRate, eventRate) : null;
+		private final TokenBucket byteBucket = byteRate > 0 ? new TokenBucket(byteRate, byteRate) : null;
+		private final Object quotaLock = new Object();//совместная проверка и расход обеих квот
+		private final AtomicLong events = new AtomicLong();
+		private final AtomicLong eventsRejected = new AtomicLong();
+		private final AtomicLong outboundBytes = new AtomicLong();
+		private final AtomicLong bytesRejected = new AtomicLong();
+		final AtomicLong handled = new AtomicLong();
+		//очередь обработки, защищена монитором объекта (см. SchemaDispatcher)
+		final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+		int running = 0;
+		boolean scheduled = false;
+		long dropped = 0;//сообщения, не поставленные в переполненную очередь
+
+		Schema(String name) {
+			this.name = name;
+		}
+
+		synchronized SchemaUsage snapshot() {
+			return new SchemaUsage(events.get(), eventsRejected.get(), outboundBytes.get(), bytesRejected.get(),
+					handled.get(), tasks.size(), running, dropped);
+		}
+	}
+
+	/**
+	 * Состояние схемы (создаётся при первом обращении).
+	 * @param name имя схемы (null и пустая строка &mdash; общая)
+	 */
+	static Schema get(String name) {
+		if (name == null) {
+			name = "";
+		}
+		Schema schema = schemas.get(name);
+		if (schema == null) {
+			schema = new Schema(name);
+			Schema existing = schemas.putIfAbsent(name, schema);
+			if (existing != null) {
+				schema = existing;
+			}
+		}
+		return schema;
+	}
+
+	/**
+	 * Предварительная проверка квоты частоты событий схемы, до подбора
+	 * получателей и кодирования сообщения. Квота не расходуется.
+	 * @param name схема получателей события
+	 * @return false, если событие заведомо будет отклонено (оно учитывается как отклонённое)
+	 */
+	static boolean hasEventQuota(String name) {
+		Schema schema = get(name);
+		if (schema.eventBucket != null && !schema.eventBucket.canAcquire(1)) {
+			schema.eventsRejected.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Проверка квот частоты событий и объёма рассылки схемы. Квоты расходуются,
+	 * только если событие проходит по обеим; отказ по объёму учитывается
+	 * лишь в отклонённых байтах.
+	 * @param name схема получателей события
+	 * @param bytes объём рассылки (размер сообщения, умноженный на число получателей)
+	 * @return true, если событие можно разослать
+	 */
+	static boolean tryFireEvent(String name, long bytes) {
+		Schema schema = get(name);
+		int permits = (int) Math.min(Integer.MAX_VALUE, bytes);
+		synchronized (schema.quotaLock) {
+			if (schema.eventBucket != null && !schema.eventBucket.canAcquire(1)) {
+				schema.eventsRejected.incrementAndGet();
+				return false;
+			}
+			if (schema.byteBucket != null && !schema.byteBucket.canAcquire(permits)) {
+				schema.bytesRejected.addAndGet(bytes);
+				return false;
+			}
+			if (schema.eventBucket != null) {
+				schema.eventBucket.tryAcquire();
+			}
+			if (schema.byteBucket != null) {
+				schema.byteBucket.tryAcquire(permits);
+			}
+		}
+		schema.events.incrementAndGet();
+		schema.outboundBytes.addAndGet(bytes);
+		return true;
+	}
+
+	@Override
+	public Map<String, SchemaUsage> getSchemaUsage() {
+		Map<String, SchemaUsage> result = new TreeMap<>();
+		for (Schema schema: schemas.values()) {
+			result.put(schema.name, schema.snapshot());
+		}
+		return result;
+	}
+
+	/**
+	 * Статистика по схемам одним JSON-объектом.
+	 */
+	JsonObject toJson() {
+		JsonObjectBuilder result = Json.createObjectBuilder();
+		for (Map.Entry<String, SchemaUsage> usage: getSchemaUsage().entrySet()) {
+			result.add(usage.getKey(), usage.getValue().toJson());
+		}
+		return result.build();
+	}
+}
@@ -0,0 +1,10 @@
+package ru.carabi.server.eventer;
+
+import java.util.Map;
+
+/**
+ * Статистика {@link SchemaQuotas} для JMX.
+ */
+public interface SchemaQuotasMXBean {
+	Map<String, SchemaUsage> getSchemaUsage();
+}
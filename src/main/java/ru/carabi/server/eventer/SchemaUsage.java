@@ -0,0 +1,100 @@
+package ru.carabi.server.eventer;
+
+import java.beans.ConstructorProperties;
+import javax.json.Json;
+import javax.json.JsonObject;
+
+/**
+ * Использование ресурсов одной схемой (для JMX и запроса состояния).
+ */
+public class SchemaUsage {
+	private final long events;
+	private final long eventsRejected;
+	private final long outboundBytes;
+	private final long bytesRejected;
+	private final long handled;
+	private final int queued;
+	private final int running;
+	private final long dropped;
+
+	@ConstructorProperties({"events", "eventsRejected", "outboundBytes", "bytesRejected", "handled", "queued", "running", "dropped"})
+	public SchemaUsage(long events, long eventsRejected, long outboundBytes, long bytesRejected, long handled, int queued, int running, long dropped) {
+		this.events = events;
+		this.eventsRejected = eventsRejected;
+		this.outboundBytes = outboundBytes;
+		this.bytesRejected = bytesRejected;
+		this.handled = handled;
+		this.queued = queued;
+		this.running = running;
+		this.dropped = dropped;
+	}
+
+	/**
+	 * Разосланные события.
+	 */
+	public long getEvents() {
+		return events;
+	}
+
+	/**
+	 * События, отклонённые по частоте (SCHEMA_EVENT_RATE).
+	 */
+	public long getEventsRejected() {
+		return eventsRejected;
+	}
+
+	/**
+	 * Байты, отправленные подписчикам при рассылке событий.
+	 */
+	public long getOutboundBytes() {
+		return outboundBytes;
+	}
+
+	/**
+	 * Байты событий, отклонённых по объёму (SCHEMA_BYTE_RATE).
+	 */
+	public long getBytesRejected() {
+		return bytesRejected;
+	}
+
+	/**
+	 * Обработанные входящие сообщения сессий схемы.
+	 */
+	public long getHandled() {
+		return handled;
+	}
+
+	/**
+	 * Сообщения, ожидающие обработки.
+	 */
+	public int getQueued() {
+		return queued;
+	}
+
+	/**
+	 * Сообщения, обрабатываемые в данный момент.
+	 */
+	public int getRunning() {
+		return running;
+	}
+
+	/**
+	 * Входящие сообщения, отброшенные из-за переполнения очереди (SCHEMA_QUEUE_LIMIT).
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+
+	JsonObject toJson() {
+		return Json.createObjectBuilder()
+				.add("events", events)
+				.add("eventsRejected", eventsRejected)
+				.add("outboundBytes", outboundBytes)
+				.add("bytesRejected", bytesRejected)
+				.add("handled", handled)
+				.add("queued", queued)
+				.add("running", running)
+				.add("dropped", dropped)
+				.build();
+	}
+}
@@ -0,0 +1,285 @@
+package ru.carabi.server.eventer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.xml.ws.WebServiceException;
+import ru.carabi.libs.CarabiEventType;
+import ru.carabi.stub.CarabiException_Exception;
+
+/**
+ * Снимок сессий для быстрой повторной авторизации после перезапуска Eventer-а.
+ * Сессии (токен Eventer-а, схема, логин, ID пользователя, подписки на типы и коды событий) периодически
+ * (SNAPSHOT_INTERVAL секунд) и при штатной остановке записываются в файл
+ * SNAPSHOT_FILE, доступный только владельцу. Токены SOAP-сервера в файл не
+ * пишутся, чтобы копия снимка не давала доступа к SOAP-серверу: при
+ * восстановлении SOAP-токен заново расшифровывается из токена Eventer-а.
+ * При запуске снимок загружается; клиент, переподключившийся с токеном из
+ * снимка не позднее SNAPSHOT_TTL секунд после его записи, авторизуется без
+ * обращения к SOAP-серверу.
+ * Проверка таких сессий выполняется в фоне небольшим пулом потоков
+ * (SNAPSHOT_VALIDATORS), не прошедшие проверку отключаются.
+ */
+final class SessionSnapshot {
+	private static final Logger logger = Logger.getLogger(SessionSnapshot.class.getName());
+	private static final int MAGIC = 0x43455353;
+	private static final short VERSION = 3;
+
+	private static volatile String fileName = Main.getSetting("SNAPSHOT_FILE", "");
+	private static final int interval = Main.getIntSetting("SNAPSHOT_INTERVAL", 60);
+	private static final long ttl = TimeUnit.SECONDS.toMillis(Main.getIntSetting("SNAPSHOT_TTL", 300));
+
+	/**
+	 * Сессии из загруженного снимка, ещё не восстановленные (по eventer-токенам).
+	 */
+	private static final ConcurrentHashMap<String, Entry> restored = new ConcurrentHashMap<>();
+	private static volatile long restoredUntil = 0;
+	private static ScheduledExecutorService saver;
+	private static ExecutorService validators;
+
+	private SessionSnapshot() {
+	}
+
+	/**
+	 * Данные одной сессии.
+	 */
+	static final class Entry {
+		final String eventerToken;
+		final String schema;
+		final String login;
+		final int userId;
+		final Set<CarabiEventType> whatToSend;
+		final Set<Integer> eventCodes;
+
+		Entry(String eventerToken, String schema, String login, int userId, Set<CarabiEventType> whatToSend, Set<Integer> eventCodes) {
+			this.eventerToken = eventerToken;
+			this.schema = schema;
+			this.login = login;
+			this.userId = userId;
+			this.whatToSend = whatToSend;
+			this.eventCodes = eventCodes;
+		}
+	}
+
+	static boolean isEnabled() {
+		return !fileName.isEmpty();
+	}
+
+	/**
+	 * Замена файла снимка (для тестов).
+	 * @param name путь к файлу (пустая строка &mdash; снимки не ведутся)
+	 */
+	static void setFile(String name) {
+		fileName = name;
+	}
+
+	/**
+	 * Загрузка снимка, оставшегося от предыдущего запуска, и запуск периодической записи.
+	 */
+	static synchronized void start() {
+		if (!isEnabled() || saver != null) {
+			return;
+		}
+		load();
+		ThreadFactory daemons = new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "session-snapshot");
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		validators = Executors.newFixedThreadPool(Math.max(1, Main.getIntSetting("SNAPSHOT_VALIDATORS", 2)), daemons);
+		saver = Executors.newSingleThreadScheduledExecutor(daemons);
+		if (interval > 0) {
+			saver.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					save();
+				}
+			}, interval, interval, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Запись снимка текущих сессий. Файл заменяется атомарно.
+	 */
+	static synchronized void save() {
+		if (!isEnabled()) {
+			return;
+		}
+		List<Entry> entries = ClientsHolder.getSessionEntries();
+		Path file = Paths.get(fileName).toAbsolutePath();
+		Path temp = null;
+		try {
+			//createTempFile создаёт файл с правами только для владельца
+			temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+			try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+				output.writeInt(MAGIC);
+				output.writeShort(VERSION);
+				output.writeLong(System.currentTimeMillis());
+				output.writeInt(entries.size());
+				for (Entry entry: entries) {
+					output.writeUTF(entry.eventerToken);
+					output.writeUTF(entry.schema);
+					output.writeUTF(entry.login);
+					output.writeInt(entry.userId);
+					output.writeShort(entry.whatToSend.size());
+					for (CarabiEventType type: entry.whatToSend) {
+						output.writeShort(type.getCode());
+					}
+					if (entry.eventCodes == null) {
+						output.writeInt(-1);
+					} else {
+						output.writeInt(entry.eventCodes.size());
+						for (Integer code: entry.eventCodes) {
+							output.writeInt(code);
+						}
+					}
+				}
+			}
+			try {
+				Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+			logger.log(Level.FINE, "session snapshot saved: {0} sessions", entries.size());
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "session snapshot is not saved", e);
+			if (temp != null) {
+				try {
+					Files.deleteIfExists(temp);
+				} catch (IOException ex) {
+					logger.log(Level.FINE, null, ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Чтение снимка. Файл удаляется после чтения: восстановить сессии из него
+	 * можно только один раз.
+	 */
+	static void load() {
+		Path file = Paths.get(fileName);
+		if (!Files.exists(file)) {
+			return;
+		}
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			short version = 0;
+			if (input.readInt() != MAGIC || (version = input.readShort()) < 1 || version > VERSION) {
+				logger.log(Level.WARNING, "unknown session snapshot format: {0}", file);
+				return;
+			}
+			long savedAt = input.readLong();
+			int count = input.readInt();
+			for (int i = 0; i < count; i++) {
+				String eventerToken = input.readUTF();
+				if (version < 3) {
+					input.readUTF();//SOAP-токен, больше не используется
+				}
+				String schema = input.readUTF();
+				String login = input.readUTF();
+				int userId = input.readInt();
+				int typesCount = input.readShort();
+				Set<CarabiEventType> whatToSend = EnumSet.noneOf(CarabiEventType.class);
+				for (int j = 0; j < typesCount; j++) {
+					CarabiEventType type = CarabiEventType.getTypeByCode(input.readShort());
+					if (type != null) {
+						whatToSend.add(type);
+					}
+				}
+				//версия 1 не содержит подписок на коды событий
+				Set<Integer> eventCodes = null;
+				int codesCount = version > 1 ? input.readInt() : -1;
+				if (codesCount >= 0) {
+					eventCodes = new HashSet<>();
+					for (int j = 0; j < codesCount; j++) {
+						eventCodes.add(input.readInt());
+					}
+				}
+				restored.put(eventerToken, new Entry(eventerToken, schema, login, userId, whatToSend, eventCodes));
+			}
+			restoredUntil = savedAt + ttl;
+			logger.log(Level.INFO, "session snapshot loaded: {0} sessions", count);
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "session snapshot is not loaded", e);
+			restored.clear();
+		} finally {
+			try {
+				Files.deleteIfExists(file);
+			} catch (IOException e) {
+				logger.log(Level.WARNING, null, e);
+			}
+		}
+	}
+
+	/**
+	 * Извлечь сессию из снимка.
+	 * @param eventerToken токен переподключившегося клиента
+	 * @return данные сессии или null, если её нет в снимке или снимок устарел
+	 */
+	static Entry take(String eventerToken) {
+		if (restored.isEmpty()) {
+			return null;
+		}
+		if (System.currentTimeMillis() > restoredUntil) {
+			restored.clear();
+			return null;
+		}
+		return restored.remove(eventerToken);
+	}
+
+	/**
+	 * Фоновая проверка восстановленной сессии: SOAP-сервер должен подтвердить
+	 * пользователя по SOAP-токену, расшифрованному из токена Eventer-а.
+	 * При отрицательном результате сессия закрывается. Если SOAP-сервер
+	 * недоступен, сессия сохраняется.
+	 * @param entry восстановленная сессия
+	 * @param client подключение клиента
+	 */
+	static void validate(final Entry entry, final MessagesHandler client) {
+		validators.execute(new Runnable() {
+			@Override
+			public void run() {
+				boolean valid;
+				try {
+					JsonObject userInfo = Json.createReader(new StringReader(SoapGateway.getUserInfo(client.getSoapToken()))).readObject();
+					valid = entry.login.equals(userInfo.getString("login", null));
+				} catch (CarabiException_Exception e) {
+					logger.log(Level.FINE, null, e);
+					valid = false;
+				} catch (WebServiceException e) {
+					logger.log(Level.WARNING, "restored session is not validated: {0}", e.getMessage());
+					return;
+				}
+				if (!valid) {
+					logger.log(Level.INFO, "restored session of {0} is rejected", entry.login);
+					ClientsHolder.rejectClient(entry.eventerToken, client);
+				}
+			}
+		});
+	}
+}
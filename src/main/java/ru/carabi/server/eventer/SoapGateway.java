@@ -2,7 +2,15 @@ package ru.carabi.server.eventer;
 
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.ResourceBundle;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.namespace.QName;
+import javax.xml.ws.BindingProvider;
+import javax.xml.ws.Service;
+import javax.xml.ws.WebServiceClient;
+import javax.xml.ws.WebServiceException;
+import ru.carabi.stub.CarabiException_Exception;
 import ru.carabi.stub.ChatService;
 import ru.carabi.stub.ChatService_Service;
 import ru.carabi.stub.GuestService;
@@ -11,22 +19,159 @@ import ru.carabi.stub.QueryService;
 import ru.carabi.stub.QueryService_Service;
 
 /**
- *
+ * Обращения к SOAP-серверу Carabi.
+ * Порты создаются при первом вызове, поэтому запуск Eventer-а не зависит
+ * от доступности SOAP-сервера. Описание сервиса берётся из копии в jar
+ * (wsdl/&lt;сервис&gt;.wsdl, собирается из src/wsdl), а если её нет &mdash;
+ * загружается с сервера (параметры *_SERVICE). Запросы отправляются
+ * по адресу SOAP_SERVER.
  * @author sasha
  */
 public class SoapGateway {
+	private static final Logger logger = Logger.getLogger(SoapGateway.class.getName());
 	
-	static ChatService chatServicePort;
-	static GuestService guestServicePort;
-	static QueryService queryServicePort;
+	private static volatile String soapServer;
 	
+	private static final LazyPort<ChatService> chatServicePort = new LazyPort<>(ChatService_Service.class, ChatService.class, "CHAT_SERVICE");
+	private static final LazyPort<GuestService> guestServicePort = new LazyPort<>(GuestService_Service.class, GuestService.class, "GUEST_SERVICE");
+	private static final LazyPort<QueryService> queryServicePort = new LazyPort<>(QueryService_Service.class, QueryService.class, "QUERY_SERVICE");
+	
+	/**
+	 * Установка адреса SOAP-сервера. Порты создаются в фоновом потоке,
+	 * чтобы первый запрос не ждал разбора описания сервиса.
+	 * @param soapServer адрес SOAP-сервера
+	 */
 	public static void init(String soapServer) throws MalformedURLException {
-		ResourceBundle settings =Main.settings;
-		ChatService_Service chatService = new ChatService_Service(new URL(soapServer + settings.getString("CHAT_SERVICE")));
-		chatServicePort = chatService.getChatServicePort();
-		GuestService_Service guestService = new GuestService_Service(new URL(soapServer + settings.getString("GUEST_SERVICE")));
-		guestServicePort = guestService.getPort(GuestService.class);
-		QueryService_Service queryService = new QueryService_Service(new URL(soapServer + settings.getString("QUERY_SERVICE")));
-		queryServicePort = queryService.getPort(QueryService.class);
+		new URL(soapServer);
+		SoapGateway.soapServer = soapServer;
+		Thread warmUp = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					getGuestServicePort();
+					getChatServicePort();
+				} catch (Exception e) {
+					logger.log(Level.WARNING, "SOAP ports are not ready: {0}", e.getMessage());
+				}
+			}
+		}, "soap-warm-up");
+		warmUp.setDaemon(true);
+		warmUp.start();
+	}
+	
+	static ChatService getChatServicePort() {
+		return chatServicePort.get();
+	}
+	
+	static GuestService getGuestServicePort() {
+		return guestServicePort.get();
+	}
+	
+	static QueryService getQueryServicePort() {
+		return queryServicePort.get();
+	}
+	
+	/**
+	 * Адрес сервиса: SOAP_SERVER и имя сервиса из настроек без запроса (?wsdl).
+	 * @param serviceSetting параметр с именем сервиса
+	 * @return адрес для отправки запросов
+	 */
+	static String getEndpointAddress(String serviceSetting) {
+		String service = Main.settings.getString(serviceSetting);
+		int query = service.indexOf('?');
+		if (query >= 0) {
+			service = service.substring(0, query);
+		}
+		return soapServer + service;
+	}
+	
+	/**
+	 * Порт SOAP-сервиса, создаваемый при первом обращении.
+	 * Если создать порт не удалось, попытка повторяется при следующем вызове.
+	 */
+	private static class LazyPort<T> {
+		private final Class<? extends Service> serviceClass;
+		private final Class<T> portClass;
+		private final String serviceSetting;
+		private volatile T port;
+		
+		LazyPort(Class<? extends Service> serviceClass, Class<T> portClass, String serviceSetting) {
+			this.serviceClass = serviceClass;
+			this.portClass = portClass;
+			this.serviceSetting = serviceSetting;
+		}
+		
+		T get() {
+			T result = port;
+			if (result == null) {
+				synchronized (this) {
+					result = port;
+					if (result == null) {
+						result = create();
+						port = result;
+					}
+				}
+			}
+			return result;
+		}
+		
+		private T create() {
+			if (soapServer == null) {
+				throw new IllegalStateException("SoapGateway is not initialized");
+			}
+			WebServiceClient client = serviceClass.getAnnotation(WebServiceClient.class);
+			URL wsdlLocation = SoapGateway.class.getResource("/wsdl/" + client.name() + ".wsdl");
+			if (wsdlLocation == null) {
+				try {
+					wsdlLocation = new URL(soapServer + Main.settings.getString(serviceSetting));
+				} catch (MalformedURLException e) {
+					throw new WebServiceException(e);
+				}
+			}
+			long start = System.nanoTime();
+			Service service = Service.create(wsdlLocation, new QName(client.targetNamespace(), client.name()));
+			T result = service.getPort(new QName(client.targetNamespace(), client.name() + "Port"), portClass);
+			((BindingProvider) result).getRequestContext().put(BindingProvider.ENDPOINT_ADDRESS_PROPERTY, getEndpointAddress(serviceSetting));
+			logger.log(Level.INFO, "{0} port created from {1} in {2} ms",
+					new Object[]{client.name(), wsdlLocation, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)});
+			return result;
+		}
+	}
+	
+	/**
+	 * Получение данных пользователя (схема, логин, ID) по SOAP-токену.
+	 * @param soapToken токен сессии на SOAP-сервере
+	 * @return данные пользователя в JSON
+	 */
+	static String getUserInfo(String soapToken) throws CarabiException_Exception {
+		EventerStats.soapCallStarted();
+		long start = System.nanoTime();
+		boolean success = false;
+		try {
+			String userInfo = getGuestServicePort().getUserInfo(soapToken);
+			success = true;
+			return userInfo;
+		} finally {
+			EventerStats.soapCallFinished(success);
+			Tracing.soapCall("getUserInfo", System.nanoTime() - start, success);
+		}
+	}
+	
+	/**
+	 * Оповещение SOAP-сервера о подключении или отключении пользователя.
+	 * @param token eventer-токен сессии
+	 * @param online подключился или отключился
+	 */
+	static void fireUserState(String token, boolean online) throws Exception {
+		EventerStats.soapCallStarted();
+		long start = System.nanoTime();
+		boolean success = false;
+		try {
+			getChatServicePort().fireUserState(token, online);
+			success = true;
+		} finally {
+			EventerStats.soapCallFinished(success);
+			Tracing.soapCall("fireUserState", System.nanoTime() - start, success);
+		}
 	}
 }
@@ -0,0 +1,71 @@
+package ru.carabi.server.eventer;
+
+/**
+ * Ограничитель частоты по алгоритму "ведро с токенами".
+ * Ведро пополняется со скоростью rate токенов в секунду, но не больше burst.
+ * Каждая операция забирает один токен; если токенов нет &mdash; операция отклоняется.
+ */
+final class TokenBucket {
+	private final double tokensPerNano;
+	private final double capacity;
+	private double tokens;
+	private long refilledAt;
+	
+	/**
+	 * @param rate допустимое число операций в секунду
+	 * @param burst допустимое число операций подряд
+	 */
+	TokenBucket(int rate, int burst) {
+		tokensPerNano = rate / 1e9;
+		capacity = Math.max(1, burst);
+		tokens = capacity;
+		refilledAt = System.nanoTime();
+	}
+	
+	/**
+	 * Забрать токен.
+	 * @return true, если операция разрешена
+	 */
+	boolean tryAcquire() {
+		return tryAcquire(1);
+	}
+	
+	/**
+	 * Забрать несколько токенов (например, байты сообщения).
+	 * Операция больше ёмкости ведра разрешается, когда ведро полное;
+	 * ведро при этом уходит в минус, и следующие операции ждут пополнения.
+	 * @param permits число токенов
+	 * @return true, если операция разрешена
+	 */
+	synchronized boolean tryAcquire(int permits) {
+		if (canAcquire(permits)) {
+			tokens -= permits;
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Проверить, что токены есть, не забирая их.
+	 * @param permits число токенов
+	 * @return true, если {@link #tryAcquire(int)} сейчас разрешит операцию
+	 */
+	synchronized boolean canAcquire(int permits) {
+		refill();
+		return tokens >= Math.min(permits, capacity);
+	}
+	
+	/**
+	 * Ведро полное &mdash; операций давно не было, его можно удалить.
+	 */
+	synchronized boolean isFull() {
+		refill();
+		return tokens >= capacity;
+	}
+	
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(capacity, tokens + (now - refilledAt) * tokensPerNano);
+		refilledAt = now;
+	}
+}
@@ -0,0 +1,72 @@
+package ru.carabi.server.eventer;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import ru.carabi.libs.CarabiEventType;
+
+/**
+ * Точка вызова {@link MessageTracer}.
+ * Если реализация на JFR не собрана или JVM её не поддерживает, используется
+ * пустая реализация, вызовы которой JIT-компилятор убирает.
+ */
+final class Tracing {
+	private static final Logger logger = Logger.getLogger(Tracing.class.getName());
+	private static final String JFR_TRACER = "ru.carabi.server.eventer.jfr.JfrMessageTracer";
+	private static final MessageTracer tracer = loadTracer();
+	
+	private Tracing() {
+	}
+	
+	private static MessageTracer loadTracer() {
+		try {
+			return (MessageTracer) Class.forName(JFR_TRACER).newInstance();
+		} catch (ClassNotFoundException ex) {
+			return new NoTracer();
+		} catch (ReflectiveOperationException | LinkageError ex) {
+			logger.log(Level.INFO, "JFR tracing unavailable: {0}", ex.toString());
+			return new NoTracer();
+		}
+	}
+	
+	static void frameDecoded(long sessionId, short code, int bytes) {
+		tracer.frameDecoded(sessionId, code, bytes);
+	}
+	
+	static void handled(long sessionId, CarabiEventType type, long queuedNanos, long handleNanos) {
+		tracer.handled(sessionId, type, queuedNanos, handleNanos);
+	}
+	
+	static void fanout(int eventCode, String schema, String login, int recipients, long nanos) {
+		tracer.fanout(eventCode, schema, login, recipients, nanos);
+	}
+	
+	static void soapCall(String operation, long nanos, boolean success) {
+		tracer.soapCall(operation, nanos, success);
+	}
+	
+	static void writabilityChanged(long sessionId, boolean writable) {
+		tracer.writabilityChanged(sessionId, writable);
+	}
+	
+	private static final class NoTracer implements MessageTracer {
+		@Override
+		public void frameDecoded(long sessionId, short code, int bytes) {
+		}
+		
+		@Override
+		public void handled(long sessionId, CarabiEventType type, long queuedNanos, long handleNanos) {
+		}
+		
+		@Override
+		public void fanout(int eventCode, String schema, String login, int recipients, long nanos) {
+		}
+		
+		@Override
+		public void soapCall(String operation, long nanos, boolean success) {
+		}
+		
+		@Override
+		public void writabilityChanged(long sessionId, boolean writable) {
+		}
+	}
+}
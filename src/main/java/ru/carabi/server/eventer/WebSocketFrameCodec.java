@@ -0,0 +1,63 @@
+package ru.carabi.server.eventer;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageCodec;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.List;
+import javax.json.Json;
+import javax.json.JsonObject;
+
+/**
+ * Преобразование кадров WebSocket в сообщения бинарного протокола Carabi и обратно.
+ * Бинарный кадр содержит сообщения в том же формате, что и TCP-подключение
+ * (два байта типа, строка UTF-8, терминальный ноль) и передаётся
+ * в {@link MessagesHandler} без изменений.
+ * Текстовый кадр &mdash; JSON-объект вида {"type": код, "text": "строка"}.
+ * Если клиент прислал текстовый кадр, ответы ему также отправляются текстовыми
+ * кадрами, иначе &mdash; бинарными.
+ */
+public class WebSocketFrameCodec extends MessageToMessageCodec<WebSocketFrame, ByteBuf> {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private boolean textMode = false;
+	
+	@Override
+	protected void decode(ChannelHandlerContext ctx, WebSocketFrame frame, List<Object> out) throws Exception {
+		if (frame instanceof TextWebSocketFrame) {
+			textMode = true;
+			JsonObject message = Json.createReader(new StringReader(((TextWebSocketFrame) frame).text())).readObject();
+			byte[] text = message.getString("text", "").getBytes(UTF8);
+			ByteBuf buffer = ctx.alloc().buffer(text.length + 3);
+			buffer.writeShort(message.getInt("type"));
+			buffer.writeBytes(text);
+			buffer.writeByte(0);
+			out.add(buffer);
+		} else if (frame instanceof BinaryWebSocketFrame) {
+			textMode = false;
+			out.add(frame.content().retain());
+		}
+	}
+	
+	@Override
+	protected void encode(ChannelHandlerContext ctx, ByteBuf msg, List<Object> out) throws Exception {
+		if (!textMode) {
+			out.add(new BinaryWebSocketFrame(msg.retain()));
+			return;
+		}
+		while (msg.readableBytes() >= 2) {
+			short code = msg.readShort();
+			int length = msg.bytesBefore((byte) 0);
+			if (length < 0) {
+				length = msg.readableBytes();
+			}
+			String text = msg.toString(msg.readerIndex(), length, UTF8);
+			msg.skipBytes(Math.min(length + 1, msg.readableBytes()));
+			String json = Json.createObjectBuilder().add("type", code).add("text", text).build().toString();
+			out.add(new TextWebSocketFrame(json));
+		}
+	}
+}
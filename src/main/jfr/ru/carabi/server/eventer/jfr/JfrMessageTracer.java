@@ -0,0 +1,152 @@
+package ru.carabi.server.eventer.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import ru.carabi.libs.CarabiEventType;
+import ru.carabi.server.eventer.MessageTracer;
+
+/**
+ * Трассировка сообщений событиями JDK Flight Recorder.
+ * События пишутся только во время записи JFR (например, -XX:StartFlightRecording
+ * или jcmd JFR.start) и могут быть отключены в её настройках по имени
+ * ru.carabi.eventer.*; без записи создание события устраняется JIT-компилятором.
+ * Длительности записываются в поля событий, так как начало операции
+ * и её завершение находятся в разных потоках.
+ */
+public class JfrMessageTracer implements MessageTracer {
+	@Override
+	public void frameDecoded(long sessionId, short code, int bytes) {
+		FrameDecoded event = new FrameDecoded();
+		if (event.isEnabled()) {
+			event.session = sessionId;
+			event.code = code;
+			event.bytes = bytes;
+			event.commit();
+		}
+	}
+	
+	@Override
+	public void handled(long sessionId, CarabiEventType type, long queuedNanos, long handleNanos) {
+		MessageHandled event = new MessageHandled();
+		if (event.isEnabled()) {
+			event.session = sessionId;
+			event.type = type.name();
+			event.queued = queuedNanos;
+			event.handle = handleNanos;
+			event.commit();
+		}
+	}
+	
+	@Override
+	public void fanout(int eventCode, String schema, String login, int recipients, long nanos) {
+		Fanout event = new Fanout();
+		if (event.isEnabled()) {
+			event.code = eventCode;
+			event.schema = schema;
+			event.login = login;
+			event.recipients = recipients;
+			event.fanout = nanos;
+			event.commit();
+		}
+	}
+	
+	@Override
+	public void soapCall(String operation, long nanos, boolean success) {
+		SoapCall event = new SoapCall();
+		if (event.isEnabled()) {
+			event.operation = operation;
+			event.call = nanos;
+			event.success = success;
+			event.commit();
+		}
+	}
+	
+	@Override
+	public void writabilityChanged(long sessionId, boolean writable) {
+		WritabilityChanged event = new WritabilityChanged();
+		if (event.isEnabled()) {
+			event.session = sessionId;
+			event.writable = writable;
+			event.commit();
+		}
+	}
+	
+	@Name("ru.carabi.eventer.FrameDecoded")
+	@Label("Frame Decoded")
+	@Category({"Carabi", "Eventer"})
+	@StackTrace(false)
+	static class FrameDecoded extends Event {
+		@Label("Session")
+		long session;
+		@Label("Type Code")
+		short code;
+		@Label("Bytes")
+		int bytes;
+	}
+	
+	@Name("ru.carabi.eventer.MessageHandled")
+	@Label("Message Handled")
+	@Category({"Carabi", "Eventer"})
+	@StackTrace(false)
+	static class MessageHandled extends Event {
+		@Label("Session")
+		long session;
+		@Label("Type")
+		String type;
+		@Label("Queued")
+		@Description("Time from decoding to the start of handling")
+		@Timespan
+		long queued;
+		@Label("Handle")
+		@Timespan
+		long handle;
+	}
+	
+	@Name("ru.carabi.eventer.Fanout")
+	@Label("Event Fan-out")
+	@Category({"Carabi", "Eventer"})
+	@StackTrace(false)
+	static class Fanout extends Event {
+		@Label("Event Code")
+		int code;
+		@Label("Schema")
+		String schema;
+		@Label("Login")
+		String login;
+		@Label("Recipients")
+		int recipients;
+		@Label("Fan-out")
+		@Timespan
+		long fanout;
+	}
+	
+	@Name("ru.carabi.eventer.SoapCall")
+	@Label("SOAP Call")
+	@Category({"Carabi", "Eventer"})
+	@StackTrace(false)
+	static class SoapCall extends Event {
+		@Label("Operation")
+		String operation;
+		@Label("Call")
+		@Timespan
+		long call;
+		@Label("Success")
+		boolean success;
+	}
+	
+	@Name("ru.carabi.eventer.WritabilityChanged")
+	@Label("Channel Writability Changed")
+	@Category({"Carabi", "Eventer"})
+	@StackTrace(false)
+	static class WritabilityChanged extends Event {
+		@Label("Session")
+		long session;
+		@Label("Writable")
+		boolean writable;
+	}
+}
@@ -1 +1 @@
-java -cp eventer.jar ru.carabi.server.eventer.CheckStatus
+java -cp eventer.jar ru.carabi.server.eventer.CheckStatus "$@"
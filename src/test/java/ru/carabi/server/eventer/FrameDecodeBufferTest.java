@@ -0,0 +1,77 @@
+package ru.carabi.server.eventer;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.nio.charset.Charset;
+import junit.framework.TestCase;
+import ru.carabi.libs.CarabiEventType;
+
+/**
+ * Простаивающее подключение не держит буферов чтения: буфер создаётся только
+ * на время недочитанного сообщения. Объём памяти на подключение измеряет
+ * IdleConnectionFootprint в модуле benchmarks.
+ */
+public class FrameDecodeBufferTest extends TestCase {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Обработчик, запоминающий сообщения вместо передачи на обработку.
+	 */
+	private static class RecordingHandler extends MessagesHandler {
+		int messages;
+
+		@Override
+		void dispatch(CarabiMessage carabiMessage) {
+			messages++;
+		}
+	}
+
+	public void testNoBufferWhileIdle() {
+		RecordingHandler handler = new RecordingHandler();
+		EmbeddedChannel channel = new EmbeddedChannel(handler);
+		assertFalse(handler.hasPartialFrame());
+
+		ByteBuf frames = frame("PING");
+		ByteBuf second = frame("PING");
+		frames.writeBytes(second);
+		second.release();
+		channel.writeInbound(frames);
+		assertEquals(2, handler.messages);
+		assertEquals(0, frames.refCnt());
+		assertFalse(handler.hasPartialFrame());
+		close(channel);
+	}
+
+	public void testBufferReleasedWhenFrameCompletes() {
+		RecordingHandler handler = new RecordingHandler();
+		EmbeddedChannel channel = new EmbeddedChannel(handler);
+		ByteBuf frame = frame("PING ПИНГ");
+		ByteBuf head = frame.readSlice(5).retain();
+		channel.writeInbound(head);
+		assertEquals(0, handler.messages);
+		assertTrue(handler.hasPartialFrame());
+
+		channel.writeInbound(frame);
+		assertEquals(1, handler.messages);
+		assertEquals(0, frame.refCnt());
+		assertFalse(handler.hasPartialFrame());
+		close(channel);
+	}
+
+	private static ByteBuf frame(String text) {
+		ByteBuf frame = Unpooled.buffer();
+		frame.writeShort(CarabiEventType.ping.getCode());
+		frame.writeBytes(text.getBytes(UTF8));
+		frame.writeByte(0);
+		return frame;
+	}
+
+	/**
+	 * Закрытие канала без сообщения SOAP-серверу об отключении.
+	 */
+	private static void close(EmbeddedChannel channel) {
+		channel.pipeline().remove(MessagesHandler.class);
+		channel.finishAndReleaseAll();
+	}
+}
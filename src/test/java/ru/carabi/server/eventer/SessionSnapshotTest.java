@@ -0,0 +1,93 @@
+package ru.carabi.server.eventer;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ * Сохранение сессий в снимок и восстановление после перезапуска.
+ */
+public class SessionSnapshotTest extends TestCase {
+	private static final String FILTERED = "snapshot-filtered";
+	private static final String UNFILTERED = "snapshot-unfiltered";
+	private File file;
+
+	@Override
+	protected void setUp() throws IOException {
+		file = File.createTempFile("eventer", ".snapshot");
+		assertTrue(file.delete());
+		SessionSnapshot.setFile(file.getPath());
+	}
+
+	@Override
+	protected void tearDown() {
+		SessionSnapshot.setFile("");
+		file.delete();
+	}
+
+	public void testEventCodesRestored() {
+		EmbeddedChannel filtered = channel();
+		EmbeddedChannel unfiltered = channel();
+		ClientsHolder.putSession(FILTERED, "soap-1", handler(filtered), "snapshot", "user1", 1);
+		ClientsHolder.putSession(UNFILTERED, "soap-2", handler(unfiltered), "snapshot", "user2", 2);
+		ClientsHolder.addEventCodes(FILTERED, Arrays.asList(100, 101));
+		SessionSnapshot.save();
+		ClientsHolder.delClient(FILTERED);
+		ClientsHolder.delClient(UNFILTERED);
+		close(filtered);
+		close(unfiltered);
+
+		assertTrue(file.exists());
+		SessionSnapshot.load();
+		assertFalse(file.exists());
+		filtered = channel();
+		unfiltered = channel();
+		SessionSnapshot.Entry entry = SessionSnapshot.take(FILTERED);
+		assertNotNull(entry);
+		ClientsHolder.restoreSession(entry, "soap-1", handler(filtered));
+		entry = SessionSnapshot.take(UNFILTERED);
+		assertNotNull(entry);
+		ClientsHolder.restoreSession(entry, "soap-2", handler(unfiltered));
+
+		ClientsHolder.fireEvent("snapshot", "", 100, "subscribed");
+		ClientsHolder.fireEvent("snapshot", "", 200, "not subscribed");
+		ClientsHolder.fireEvent("snapshot", "", 101, "subscribed");
+		assertEquals(2, drainOutbound(filtered));
+		assertEquals(3, drainOutbound(unfiltered));
+
+		ClientsHolder.delClient(FILTERED);
+		ClientsHolder.delClient(UNFILTERED);
+		close(filtered);
+		close(unfiltered);
+	}
+
+	private static EmbeddedChannel channel() {
+		return new EmbeddedChannel(new MessagesHandler());
+	}
+
+	private static MessagesHandler handler(EmbeddedChannel channel) {
+		return channel.pipeline().get(MessagesHandler.class);
+	}
+
+	/**
+	 * Закрытие канала без сообщения SOAP-серверу об отключении.
+	 */
+	private static void close(EmbeddedChannel channel) {
+		channel.pipeline().remove(MessagesHandler.class);
+		channel.finishAndReleaseAll();
+	}
+
+	private static int drainOutbound(EmbeddedChannel channel) {
+		channel.runPendingTasks();
+		int count = 0;
+		Object message;
+		while ((message = channel.readOutbound()) != null) {
+			ReferenceCountUtil.release(message);
+			count++;
+		}
+		return count;
+	}
+}